@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The argument handling the loader does on every start: stripping the loader's
+ * own flags from the argument list the way it used to, with the list helpers,
+ * compared with the single pass of {@link LoaderOptions#parse}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArgumentParsingBenchmark {
+
+	private final String[] arguments = { "-clidebug", "-commandbox_home=/opt/box", "-cliworkingdir", "/srv/app",
+			"server", "start", "port=8080", "openbrowser=false", "--force" };
+
+	@Benchmark
+	public ArrayList<String> stripLoaderFlags() {
+		ArrayList<String> cliArguments = new ArrayList<String>(Arrays.asList(arguments));
+		String[] remaining = arguments;
+		for (String flag : new String[] { "-clidebug", "-cliupdate", "-commandbox_home" }) {
+			if (LoaderCLIMain.listContains(cliArguments, flag)) {
+				LoaderCLIMain.listRemoveContaining(cliArguments, flag);
+				remaining = LoaderCLIMain.removeElement(remaining, flag);
+			}
+		}
+		int index = LoaderCLIMain.listIndexOf(cliArguments, "-cliworkingdir");
+		if (index != -1) {
+			cliArguments.remove(index + 1);
+			cliArguments.remove(index);
+		}
+		return cliArguments;
+	}
+
+	@Benchmark
+	public LoaderOptions loaderOptions() {
+		return LoaderOptions.parse(Arrays.asList(arguments), "commandbox");
+	}
+}
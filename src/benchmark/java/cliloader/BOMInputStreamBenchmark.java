@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads a box.json sized document through {@link BOMInputStream} a byte at a
+ * time and in blocks, with and without a UTF-8 BOM, compared with
+ * {@link LegacyBOMInputStream}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BOMInputStreamBenchmark {
+
+	@Param({ "true", "false" })
+	public boolean withBOM;
+
+	@Param({ "current", "legacy" })
+	public String implementation;
+
+	private byte[] document;
+	private final byte[] buffer = new byte[8 * 1024];
+	private final char[] chars = new char[8 * 1024];
+
+	@Setup
+	public void setup() {
+		StringBuilder json = new StringBuilder("{\n  \"name\":\"benchmark\",\n  \"dependencies\":{\n");
+		for (int i = 0; i < 60; i++) {
+			json.append("    \"package-").append(i).append("\":\"^1.").append(i).append(".0\",\n");
+		}
+		json.append("    \"last\":\"*\"\n  }\n}\n");
+		byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+		int offset = withBOM ? 3 : 0;
+		document = new byte[body.length + offset];
+		if (withBOM) {
+			document[0] = (byte) 0xEF;
+			document[1] = (byte) 0xBB;
+			document[2] = (byte) 0xBF;
+		}
+		System.arraycopy(body, 0, document, offset, body.length);
+	}
+
+	private InputStream open() {
+		if (implementation.equals("legacy")) {
+			return new LegacyBOMInputStream(new ByteArrayInputStream(document), false);
+		}
+		return new BOMInputStream(new ByteArrayInputStream(document), false);
+	}
+
+	@Benchmark
+	public int readBytes() throws IOException {
+		InputStream in = open();
+		int total = 0;
+		while (in.read() != -1) {
+			total++;
+		}
+		return total;
+	}
+
+	@Benchmark
+	public int readBlocks() throws IOException {
+		InputStream in = open();
+		int total = 0;
+		int count;
+		while ((count = in.read(buffer, 0, buffer.length)) != -1) {
+			total += count;
+		}
+		return total;
+	}
+
+	@Benchmark
+	public int readSmallBlocks() throws IOException {
+		InputStream in = open();
+		int total = 0;
+		int count;
+		while ((count = in.read(buffer, 0, 64)) != -1) {
+			total += count;
+		}
+		return total;
+	}
+
+	@Benchmark
+	public int readWithReader() throws IOException {
+		Reader reader = implementation.equals("legacy")
+				? new InputStreamReader(new LegacyBOMInputStream(new ByteArrayInputStream(document), false),
+						StandardCharsets.UTF_8)
+				: BOMInputStream.newReader(new ByteArrayInputStream(document), StandardCharsets.UTF_8);
+		int total = 0;
+		int count;
+		while ((count = reader.read(chars, 0, chars.length)) != -1) {
+			total += count;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.util.Comparator;
+
+/**
+ * The version comparator as it was before {@link VersionKey}, kept as the
+ * baseline for {@link VersionComparatorBenchmark}. It tokenizes both strings
+ * on every comparison.
+ */
+public class LegacyVersionComparator implements Comparator<Object> {
+
+	@Override
+	public int compare(Object o1, Object o2) {
+		LegacyVersionTokenizer tokenizer1 = new LegacyVersionTokenizer((String) o1);
+		LegacyVersionTokenizer tokenizer2 = new LegacyVersionTokenizer((String) o2);
+
+		int number1 = 0, number2 = 0;
+		String suffix1 = "", suffix2 = "";
+
+		while (tokenizer1.MoveNext()) {
+			if (!tokenizer2.MoveNext()) {
+				do {
+					number1 = tokenizer1.getNumber();
+					suffix1 = tokenizer1.getSuffix();
+					if (number1 != 0 || suffix1.length() != 0) {
+						return 1;
+					}
+				} while (tokenizer1.MoveNext());
+				return 0;
+			}
+
+			number1 = tokenizer1.getNumber();
+			suffix1 = tokenizer1.getSuffix();
+			number2 = tokenizer2.getNumber();
+			suffix2 = tokenizer2.getSuffix();
+
+			if (number1 < number2) {
+				return -1;
+			}
+			if (number1 > number2) {
+				return 1;
+			}
+
+			boolean empty1 = suffix1.length() == 0;
+			boolean empty2 = suffix2.length() == 0;
+
+			if (empty1 && empty2) {
+				continue;
+			}
+			if (empty1) {
+				return 1;
+			}
+			if (empty2) {
+				return -1;
+			}
+
+			int result = suffix1.compareTo(suffix2);
+			if (result != 0) {
+				return result;
+			}
+		}
+		if (tokenizer2.MoveNext()) {
+			do {
+				number2 = tokenizer2.getNumber();
+				suffix2 = tokenizer2.getSuffix();
+				if (number2 != 0 || suffix2.length() != 0) {
+					return -1;
+				}
+			} while (tokenizer2.MoveNext());
+			return 0;
+		}
+		return 0;
+	}
+
+	static class LegacyVersionTokenizer {
+		private final int _length;
+		private int _number;
+		private int _position;
+		private String _suffix;
+		private final String _versionString;
+
+		LegacyVersionTokenizer(String versionString) {
+			this._versionString = versionString;
+			this._length = versionString.length();
+		}
+
+		int getNumber() {
+			return this._number;
+		}
+
+		String getSuffix() {
+			return this._suffix;
+		}
+
+		boolean MoveNext() {
+			this._number = 0;
+			this._suffix = "";
+
+			if (this._position >= this._length) {
+				return false;
+			}
+
+			while (this._position < this._length) {
+				char c = this._versionString.charAt(this._position);
+				if (c < '0' || c > '9') {
+					break;
+				}
+				this._number = this._number * 10 + c - '0';
+				this._position++;
+			}
+
+			int suffixStart = this._position;
+
+			while (this._position < this._length) {
+				char c = this._versionString.charAt(this._position);
+				if (c == '.') {
+					break;
+				}
+				this._position++;
+			}
+
+			this._suffix = this._versionString.substring(suffixStart, this._position);
+
+			if (this._position < this._length) {
+				this._position++;
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extracts a synthetic zip with {@link Util#unzipInteralZip}, both into an
+ * empty folder and as an in-place update where nothing changed.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class UnzipInteralZipBenchmark {
+
+	private static final String ZIP_NAME = "benchmark.zip";
+	private static final int ENTRIES = 500;
+	private static final int ENTRY_SIZE = 16 * 1024;
+
+	/**
+	 * A zip of {@link #ENTRIES} files spread over 20 folders, visible to a class
+	 * loader the same way libs.zip is visible inside box.jar.
+	 */
+	public static class SyntheticZip {
+		File workDir;
+		File extractDir;
+		File manifestFile;
+		URLClassLoader classLoader;
+
+		void create() throws IOException {
+			workDir = Files.createTempDirectory("cliloader-bench").toFile();
+			File zipDir = new File(workDir, "zip");
+			zipDir.mkdirs();
+			Random random = new Random(42);
+			byte[] data = new byte[ENTRY_SIZE];
+			ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(new File(zipDir, ZIP_NAME)));
+			for (int i = 0; i < ENTRIES; i++) {
+				// Half random, half repeated so the entries compress like real jars and source
+				random.nextBytes(data);
+				for (int j = ENTRY_SIZE / 2; j < ENTRY_SIZE; j++) {
+					data[j] = (byte) (j % 31);
+				}
+				zos.putNextEntry(new ZipEntry("dir" + (i % 20) + "/file" + i + ".bin"));
+				zos.write(data);
+				zos.closeEntry();
+			}
+			zos.close();
+			classLoader = new URLClassLoader(new URL[] { zipDir.toURI().toURL() }, null);
+			extractDir = new File(workDir, "out");
+			manifestFile = new File(workDir, "manifest/" + ZIP_NAME + ".manifest");
+		}
+
+		List<String> extract(boolean removeStale) throws IOException {
+			return Util.unzipInteralZip(classLoader, ZIP_NAME, extractDir, manifestFile, removeStale, false);
+		}
+
+		void delete() throws IOException {
+			classLoader.close();
+			Util.deleteDirectory(workDir);
+		}
+	}
+
+	/**
+	 * Every run starts from an empty folder and no manifest.
+	 */
+	@State(Scope.Benchmark)
+	public static class Empty extends SyntheticZip {
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			create();
+		}
+
+		@Setup(Level.Invocation)
+		public void wipe() throws IOException {
+			if (extractDir.exists()) {
+				Util.deleteDirectory(extractDir);
+			}
+			manifestFile.delete();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			delete();
+		}
+	}
+
+	/**
+	 * Every run finds the previous extraction and its manifest.
+	 */
+	@State(Scope.Benchmark)
+	public static class Unchanged extends SyntheticZip {
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			create();
+			extract(false);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			delete();
+		}
+	}
+
+	@Benchmark
+	public List<String> fullExtract(Empty zip) throws IOException {
+		return zip.extract(false);
+	}
+
+	@Benchmark
+	public List<String> unchangedUpdate(Unchanged zip) throws IOException {
+		return zip.extract(true);
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sorts a shuffled list of version strings with the original tokenizing
+ * comparator, the cached {@link VersionComparator}, and
+ * {@link VersionComparator#sortedVersions}.
+ *
+ * Each call sorts the next of {@link #LISTS} lists drawn from a large version
+ * space, so the VersionKey cache doesn't get to see the same list again and
+ * the cached comparator pays for parsing as it would for a list it hasn't
+ * sorted before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VersionComparatorBenchmark {
+
+	static final int LISTS = 64;
+
+	@Param({ "100", "1000" })
+	public int size;
+
+	private List<List<String>> lists;
+	private int next;
+	private final LegacyVersionComparator legacy = new LegacyVersionComparator();
+	private final VersionComparator current = new VersionComparator();
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		lists = new ArrayList<List<String>>(LISTS);
+		for (int list = 0; list < LISTS; list++) {
+			List<String> versions = new ArrayList<String>(size);
+			for (int i = 0; i < size; i++) {
+				String version = random.nextInt(6) + "." + random.nextInt(20) + "." + random.nextInt(1000);
+				switch (random.nextInt(4)) {
+				case 0:
+					version += "-beta" + random.nextInt(5);
+					break;
+				case 1:
+					version += "+" + random.nextInt(500);
+					break;
+				default:
+				}
+				versions.add(version);
+			}
+			Collections.shuffle(versions, random);
+			lists.add(versions);
+		}
+	}
+
+	private List<String> nextList() {
+		next = (next + 1) % LISTS;
+		return lists.get(next);
+	}
+
+	@Benchmark
+	public List<String> legacyComparator() {
+		List<String> sorted = new ArrayList<String>(nextList());
+		Collections.sort(sorted, legacy);
+		return sorted;
+	}
+
+	@Benchmark
+	public List<String> cachedComparator() {
+		List<String> sorted = new ArrayList<String>(nextList());
+		Collections.sort(sorted, current);
+		return sorted;
+	}
+
+	@Benchmark
+	public List<String> sortedVersions() {
+		return VersionComparator.sortedVersions(nextList());
+	}
+}
@@ -65,9 +65,95 @@ then
 	java="$JRE/bin/java"
 fi
 
+##############################################################################
+##  CLASS DATA SHARING
+##############################################################################
+
+# Opt in with -clicds or BOX_JAVA_CDS=true to have the JVM record the classes
+# loaded during startup into a dynamic AppCDS archive on the first run and map
+# it on every run after that. Java 19 and up re-create the archive by itself
+# (-XX:+AutoCreateSharedArchive). Java 13 to 18 record it at exit when there is
+# none (-XX:ArchiveClassesAtExit) and map it when there is (-XX:SharedArchiveFile).
+# Those can't tell a stale archive, so the archive is named after the Java
+# version and a new one is recorded when Java changes. Older JVMs get no flags.
+# The archive goes in CLI_HOME/cds, found the same way the loader finds CLI_HOME:
+# -commandbox_home, then commandbox.properties next to this script, then the
+# COMMANDBOX_HOME environment variable. BOX_CDS_ARCHIVE overrides all of them.
+# The path is passed on to the loader, which deletes the archive when it
+# replaces the libraries.
+use_cds=$BOX_JAVA_CDS
+cli_home=
+cds_create=
+cds_archive_option=
+cds_property=
+cds_log=
+for a in "$@"
+do
+	case "$a" in
+	-clicds|--clicds) use_cds=true ;;
+	-commandbox_home=*|--commandbox_home=*) cli_home=${a#*=} ;;
+	esac
+done
+
+if [ "$use_cds" = "true" ]
+then
+	script_dir=$(cd "$(dirname "$this_script")" && pwd)
+	if [ -z "$cli_home" ] && [ -f "$script_dir/commandbox.properties" ]
+	then
+		cli_home=$(sed -n -e 's/^[[:space:]]*cli\.home[[:space:]]*[=:][[:space:]]*//p' -e 's/^[[:space:]]*commandbox_home[[:space:]]*[=:][[:space:]]*//p' "$script_dir/commandbox.properties" | tail -n 1 | tr -d '\r')
+		case "$cli_home" in
+		''|/*) ;;
+		*) cli_home="$script_dir/$cli_home" ;;
+		esac
+	fi
+	cli_home=${cli_home:-$COMMANDBOX_HOME}
+	cli_home=${cli_home:-$HOME/.CommandBox}
+	cds_dir="$cli_home/cds"
+	mkdir -p "$cds_dir" 2>/dev/null
+
+	# "java -version" starts a JVM, so its answer is kept until the java binary changes
+	java_bin=$(command -v "$java")
+	java_version_file="$cds_dir/java.version"
+	java_version=
+	if [ -f "$java_version_file" ] && [ ! "$java_bin" -nt "$java_version_file" ] \
+		&& [ "$(sed -n 1p "$java_version_file")" = "$java_bin" ]
+	then
+		java_version=$(sed -n 2p "$java_version_file")
+	else
+		java_version=$("$java" -version 2>&1 | sed -n 's/.* version "\([^"]*\)".*/\1/p' | head -n 1)
+		printf '%s\n%s\n' "$java_bin" "$java_version" > "$java_version_file" 2>/dev/null
+	fi
+	# 1.8.0_392 is 8, 17.0.9 is 17, 21-ea is 21
+	java_major=$(echo "$java_version" | sed -n 's/^\(1\.\)\{0,1\}\([0-9][0-9]*\).*/\2/p')
+
+	if [ -n "$java_major" ] && [ "$java_major" -ge 13 ]
+	then
+		if [ -n "$BOX_CDS_ARCHIVE" ]
+		then
+			cds_archive=$BOX_CDS_ARCHIVE
+			mkdir -p "$(dirname "$cds_archive")" 2>/dev/null
+		else
+			cds_archive="$cds_dir/box-$java_version.jsa"
+		fi
+		if [ "$java_major" -ge 19 ]
+		then
+			cds_create=-XX:+AutoCreateSharedArchive
+			cds_archive_option="-XX:SharedArchiveFile=$cds_archive"
+		elif [ -f "$cds_archive" ]
+		then
+			cds_archive_option="-XX:SharedArchiveFile=$cds_archive"
+		else
+			cds_archive_option="-XX:ArchiveClassesAtExit=$cds_archive"
+		fi
+		cds_property="-Dcfml.cli.cds.archive=$cds_archive"
+		# Recording warns about every class it can't archive, which isn't the user's business
+		cds_log=-Xlog:cds*=off
+	fi
+fi
+
 ##############################################################################
 ##  EXECUTION
 ##############################################################################
 
-exec "$java" $java_args -jar $this_script "$@"
+exec "$java" $java_args ${cds_create:+"$cds_create"} ${cds_archive_option:+"$cds_archive_option"} ${cds_property:+"$cds_property"} ${cds_log:+"$cds_log"} -jar "$this_script" "$@"
 exit
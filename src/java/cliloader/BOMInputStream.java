@@ -18,6 +18,9 @@ package cliloader;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.List;
 
@@ -29,6 +32,9 @@ import java.util.List;
  * This class detects these bytes and, if required, can automatically skip them
  * and return the subsequent byte as the first byte in the stream.
  *
+ * Detection is a single bulk read of as many bytes as the longest BOM. Once
+ * those bytes have been handed back, reads go straight to the delegate.
+ *
  * The {@link ByteOrderMark} implementation has the following pre-defined BOMs:
  * <ul>
  *   <li>UTF-8 - {@link ByteOrderMark#UTF_8}</li>
@@ -54,7 +60,12 @@ import java.util.List;
  *      }
  * </pre>
  *
- * <h3>Example 3 - Detect Multiple BOMs</h3>
+ * <h3>Example 3 - Read text in whatever Unicode encoding its BOM declares</h3>
+ * <pre>
+ *      Reader reader = BOMInputStream.newReader(in, StandardCharsets.UTF_8);
+ * </pre>
+ *
+ * <h3>Example 4 - Detect Multiple BOMs</h3>
  * <pre>
  *      BOMInputStream bomIn = new BOMInputStream(in, ByteOrderMark.UTF_16LE, ByteOrderMark.UTF_16BE);
  *      if (bomIn.hasBOM() == false) {
@@ -74,11 +85,14 @@ import java.util.List;
 public class BOMInputStream extends ProxyInputStream {
     private final boolean include;
     private final List<ByteOrderMark> boms;
+    private final int maxBOMLength;
     private ByteOrderMark byteOrderMark;
-    private int[] firstBytes;
-    private int fbLength;
-    private int fbIndex;
-    private int markFbIndex;
+    private boolean detected;
+    // The bytes read while detecting that still have to be returned
+    private byte[] prefix;
+    private int prefixPos;
+    private int prefixEnd;
+    private int markPrefixPos;
     private boolean markedAtStart;
 
     /**
@@ -126,6 +140,28 @@ public class BOMInputStream extends ProxyInputStream {
         }
         this.include = include;
         this.boms = Arrays.asList(boms);
+        int max = 0;
+        for (ByteOrderMark bom : boms) {
+            max = Math.max(max, bom.length());
+        }
+        this.maxBOMLength = max;
+    }
+
+    /**
+     * Creates a Reader that decodes the stream with the charset named by its
+     * UTF-8, UTF-16BE or UTF-16LE BOM, or with the default charset if there
+     * is no BOM. The BOM itself is not part of the text read.
+     *
+     * @param in the InputStream to read
+     * @param defaultCharset the charset to use when the stream has no BOM
+     * @return the Reader
+     * @throws IOException if an error reading the first bytes of the stream occurs
+     */
+    public static Reader newReader(InputStream in, Charset defaultCharset) throws IOException {
+        BOMInputStream bomIn = new BOMInputStream(in, false,
+                ByteOrderMark.UTF_8, ByteOrderMark.UTF_16BE, ByteOrderMark.UTF_16LE);
+        String charsetName = bomIn.getBOMCharsetName();
+        return new InputStreamReader(bomIn, charsetName == null ? defaultCharset : Charset.forName(charsetName));
     }
 
     /**
@@ -163,26 +199,21 @@ public class BOMInputStream extends ProxyInputStream {
      * @throws IOException if an error reading the first bytes of the stream occurs
      */
     public ByteOrderMark getBOM() throws IOException {
-        if (firstBytes == null) {
-            int max = 0;
-            for (ByteOrderMark bom : boms) {
-                max = Math.max(max, bom.length());
+        if (!detected) {
+            detected = true;
+            if (prefix == null) {
+                prefix = new byte[maxBOMLength];
             }
-            firstBytes = new int[max];
-            for (int i = 0; i < firstBytes.length; i++) {
-                firstBytes[i] = in.read();
-                fbLength++;
-                if (firstBytes[i] < 0) {
-                    break;
-                }
-
-                byteOrderMark = find();
-                if (byteOrderMark != null) {
-                    if (!include) {
-                        fbLength = 0;
-                    }
-                    break;
-                }
+            int filled = 0;
+            int count;
+            while (filled < prefix.length && (count = in.read(prefix, filled, prefix.length - filled)) != -1) {
+                filled += count;
+            }
+            prefixPos = 0;
+            prefixEnd = filled;
+            byteOrderMark = find(filled);
+            if (byteOrderMark != null && !include) {
+                prefixPos = byteOrderMark.length();
             }
         }
         return byteOrderMark;
@@ -201,27 +232,17 @@ public class BOMInputStream extends ProxyInputStream {
     }
 
     /**
-     * This method reads and either preserves or skips the first bytes in the
-     * stream. It behaves like the single-byte <code>read()</code> method,
-     * either returning a valid byte or -1 to indicate that the initial bytes
-     * have been processed already.
-     * @return the byte read (excluding BOM) or -1 if the end of stream
-     * @throws IOException if an I/O error occurs
-     */
-    private int readFirstBytes() throws IOException {
-        getBOM();
-        return (fbIndex < fbLength) ? firstBytes[fbIndex++] : -1;
-    }
-
-    /**
-     * Find a BOM with the specified bytes.
+     * Find the BOM the first bytes start with. Shorter BOMs are matched first.
      *
+     * @param length The number of bytes read
      * @return The matched BOM or null if none matched
      */
-    private ByteOrderMark find() {
-        for (ByteOrderMark bom : boms) {
-            if (matches(bom)) {
-                return bom;
+    private ByteOrderMark find(int length) {
+        for (int bomLength = 1; bomLength <= length; bomLength++) {
+            for (ByteOrderMark bom : boms) {
+                if (bom.length() == bomLength && matches(bom)) {
+                    return bom;
+                }
             }
         }
         return null;
@@ -234,11 +255,8 @@ public class BOMInputStream extends ProxyInputStream {
      * @return true if the bytes match the bom, otherwise false
      */
     private boolean matches(ByteOrderMark bom) {
-        if (bom.length() != fbLength) {
-            return false;
-        }
         for (int i = 0; i < bom.length(); i++) {
-            if (bom.get(i) != firstBytes[i]) {
+            if (bom.get(i) != (prefix[i] & 0xFF)) {
                 return false;
             }
         }
@@ -257,8 +275,13 @@ public class BOMInputStream extends ProxyInputStream {
      */
     @Override
     public int read() throws IOException {
-        int b = readFirstBytes();
-        return (b >= 0) ? b : in.read();
+        if (!detected) {
+            getBOM();
+        }
+        if (prefixPos < prefixEnd) {
+            return prefix[prefixPos++] & 0xFF;
+        }
+        return in.read();
     }
 
     /**
@@ -272,18 +295,21 @@ public class BOMInputStream extends ProxyInputStream {
      */
     @Override
     public int read(byte[] buf, int off, int len) throws IOException {
-        int firstCount = 0;
-        int b = 0;
-        while ((len > 0) && (b >= 0)) {
-            b = readFirstBytes();
-            if (b >= 0) {
-                buf[off++] = (byte) (b & 0xFF);
-                len--;
-                firstCount++;
-            }
+        if (detected && prefixPos >= prefixEnd) {
+            return in.read(buf, off, len);
+        }
+        getBOM();
+        int firstCount = Math.min(len, prefixEnd - prefixPos);
+        if (firstCount <= 0) {
+            return in.read(buf, off, len);
         }
-        int secondCount = in.read(buf, off, len);
-        return (secondCount < 0) ? (firstCount > 0 ? firstCount : -1) : firstCount + secondCount;
+        System.arraycopy(prefix, prefixPos, buf, off, firstCount);
+        prefixPos += firstCount;
+        if (firstCount == len) {
+            return firstCount;
+        }
+        int secondCount = in.read(buf, off + firstCount, len - firstCount);
+        return (secondCount < 0) ? firstCount : firstCount + secondCount;
     }
 
     /**
@@ -299,14 +325,23 @@ public class BOMInputStream extends ProxyInputStream {
         return read(buf, 0, buf.length);
     }
 
+    /**
+     * @return the bytes left from detection plus what the delegate has available
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public int available() throws IOException {
+        return (prefixEnd - prefixPos) + in.available();
+    }
+
     /**
      * Invokes the delegate's <code>mark(int)</code> method.
      * @param readlimit read ahead limit
      */
     @Override
-    public synchronized void mark(int readlimit) {
-        markFbIndex = fbIndex;
-        markedAtStart = (firstBytes == null);
+    public void mark(int readlimit) {
+        markPrefixPos = prefixPos;
+        markedAtStart = !detected;
         in.mark(readlimit);
     }
 
@@ -315,10 +350,13 @@ public class BOMInputStream extends ProxyInputStream {
      * @throws IOException if an I/O error occurs
      */
     @Override
-    public synchronized void reset() throws IOException {
-        fbIndex = markFbIndex;
+    public void reset() throws IOException {
+        prefixPos = markPrefixPos;
         if (markedAtStart) {
-            firstBytes = null;
+            detected = false;
+            byteOrderMark = null;
+            prefixPos = 0;
+            prefixEnd = 0;
         }
 
         in.reset();
@@ -326,16 +364,16 @@ public class BOMInputStream extends ProxyInputStream {
 
     /**
      * Invokes the delegate's <code>skip(long)</code> method, detecting
-     * and optionallyskipping BOM.
+     * and optionally skipping BOM.
      * @param n the number of bytes to skip
-     * @return the number of bytes to skipped or -1 if the end of stream
+     * @return the number of bytes skipped
      * @throws IOException if an I/O error occurs
      */
     @Override
     public long skip(long n) throws IOException {
-        while ((n > 0) && (readFirstBytes() >= 0)) {
-            n--;
-        }
-        return in.skip(n);
+        getBOM();
+        int firstCount = (int) Math.max(0, Math.min(n, prefixEnd - prefixPos));
+        prefixPos += firstCount;
+        return firstCount + (n > firstCount ? in.skip(n - firstCount) : 0);
     }
 }
@@ -0,0 +1,502 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A resident JVM that keeps a {@link CommandBoxRuntime} warm and runs the
+ * commands later "box -clidaemon ..." invocations send it, so they skip the
+ * class loader and CFML engine start.
+ *
+ * The daemon is opt-in. A -clidaemon invocation that finds no daemon starts
+ * one in the background and runs its own command the usual way, and the ones
+ * after it connect to the daemon. Only commands go through the daemon; "box"
+ * with no arguments still opens the interactive shell in its own JVM.
+ *
+ * <ul>
+ * <li>The daemon listens on a loopback port. The port and a random token are
+ * in CLI_HOME/daemon.token, which only the user can read, and a connection
+ * that doesn't send the token is dropped.</li>
+ * <li>There is one daemon per home, so per user, held by a lock on
+ * CLI_HOME/daemon.lock.</li>
+ * <li>Commands run one at a time, in the order they connect.</li>
+ * <li>It exits after cfml.cli.daemon.idleMinutes (15 by default) without a
+ * command, when its token file is deleted, or when a client finds it was
+ * started from another box binary and deletes the token file.</li>
+ * </ul>
+ *
+ * A command gets the client's arguments, working directory, standard input,
+ * output, error output and exit code. It does not get the client's
+ * environment: the JVM can't change its environment variables, so commands
+ * see the environment the daemon was started with. Nor does it get the
+ * client's JVM options; the daemon runs with the JVM's defaults.
+ */
+public class BoxDaemon {
+
+	static final String TOKEN_FILE = "daemon.token";
+	static final String LOCK_FILE = "daemon.lock";
+	static final String IDLE_PROPERTY = "cfml.cli.daemon.idleMinutes";
+	static final int DEFAULT_IDLE_MINUTES = 15;
+
+	private static final int PROTOCOL = 1;
+	private static final byte ACCEPTED = 'A';
+	private static final byte OUT = 'O';
+	private static final byte ERR = 'E';
+	private static final byte EXIT = 'X';
+	private static final int HEADER_TIMEOUT = 10000;
+	private static final int CONNECT_TIMEOUT = 1000;
+	private static final int POLL_INTERVAL = 1000;
+
+	/**
+	 * What the daemon hands each command to, normally
+	 * {@link CommandBoxRuntime#run(List, InputStream, PrintStream, PrintStream)}
+	 */
+	interface CommandRunner {
+		int run(List<String> command, InputStream inputStream, PrintStream printStream, PrintStream errorStream)
+				throws IOException;
+	}
+
+	/**
+	 * Start the daemon for the home in the loader arguments and serve commands
+	 * until it goes idle. Exits quietly if another daemon holds the home.
+	 *
+	 * @param arguments Loader flags, as for {@link CommandBoxRuntime}
+	 */
+	public static void main(String[] arguments) throws Exception {
+		// Work out the home before paying for the engine, in case a daemon is already up
+		LoaderCLIMain.setEmbedded(true);
+		LoaderCLIMain.initialize(arguments);
+		File home = LoaderCLIMain.getCLI_HOME();
+
+		RandomAccessFile lockFile = new RandomAccessFile(new File(home, LOCK_FILE), "rw");
+		FileLock lock = lockFile.getChannel().tryLock();
+		if (lock == null) {
+			lockFile.close();
+			System.out.println("A daemon is already running for " + home);
+			return;
+		}
+		File tokenFile = new File(home, TOKEN_FILE);
+		String token = newToken();
+		CommandBoxRuntime runtime = null;
+		ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		try {
+			runtime = new CommandBoxRuntime(arguments);
+			writeTokenFile(tokenFile, serverSocket.getLocalPort(), token);
+			System.out.println("Listening on " + serverSocket.getLocalSocketAddress());
+			serve(serverSocket, runtime::run, tokenFile, token, idleMillis());
+		} finally {
+			serverSocket.close();
+			if (isOurs(tokenFile, token)) {
+				tokenFile.delete();
+			}
+			if (runtime != null) {
+				runtime.close();
+			}
+			lock.release();
+			lockFile.close();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Run a command through the daemon for a home.
+	 *
+	 * @param home      The CLI home
+	 * @param arguments The command and its arguments
+	 * @param cwd       The directory the command runs in
+	 * @return The command's exit code, or null if no usable daemon is running
+	 *         and the command hasn't been started
+	 */
+	static Integer runRemotely(File home, List<String> arguments, String cwd, InputStream in,
+			PrintStream out, PrintStream err) {
+		File tokenFile = new File(home, TOKEN_FILE);
+		Properties daemon = readTokenFile(tokenFile);
+		if (daemon == null) {
+			return null;
+		}
+		if (!binarySignature().equals(daemon.getProperty("binary"))) {
+			// Started from another version of box. Deleting the token file stops it.
+			LoaderLog.debug("The daemon was started from another box binary, stopping it");
+			tokenFile.delete();
+			return null;
+		}
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					Integer.parseInt(daemon.getProperty("port"))), CONNECT_TIMEOUT);
+			final DataOutputStream request = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+			request.writeInt(PROTOCOL);
+			request.writeUTF(daemon.getProperty("token"));
+			request.writeUTF(cwd);
+			request.writeInt(arguments.size());
+			for (String argument : arguments) {
+				request.writeUTF(argument);
+			}
+			request.flush();
+
+			DataInputStream response = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			if (response.read() != ACCEPTED) {
+				return null;
+			}
+			pumpInput(in, request);
+			try {
+				while (true) {
+					byte type = response.readByte();
+					if (type == EXIT) {
+						return response.readInt();
+					}
+					byte[] chunk = new byte[response.readInt()];
+					response.readFully(chunk);
+					(type == ERR ? err : out).write(chunk);
+					(type == ERR ? err : out).flush();
+				}
+			} catch (IOException e) {
+				// The command was started, so running it again here could do its work twice
+				err.println("Lost the connection to the " + LoaderCLIMain.getName() + " daemon: " + e.getMessage());
+				return 1;
+			}
+		} catch (IOException | NumberFormatException e) {
+			LoaderLog.debug("Could not use the daemon: " + e);
+			return null;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Start a daemon for a home in the background, with its output going to
+	 * CLI_HOME/logs/daemon.log. It gives up by itself if one is already running.
+	 */
+	static void startInBackground(File home, String name) {
+		File log = new File(new File(home, "logs"), "daemon.log");
+		log.getParentFile().mkdirs();
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(BoxDaemon.class.getName());
+		command.add("-" + name.toLowerCase() + "_home=" + home.getAbsolutePath());
+		try {
+			Process process = new ProcessBuilder(command)
+					.redirectErrorStream(true)
+					.redirectOutput(log)
+					.start();
+			process.getOutputStream().close();
+			LoaderLog.debug("Started a daemon in the background, logging to " + log);
+		} catch (IOException e) {
+			LoaderLog.debug("Could not start a daemon: " + e);
+		}
+	}
+
+	/**
+	 * Accept commands one at a time until the daemon has been idle for too long
+	 * or its token file is gone.
+	 */
+	static void serve(ServerSocket serverSocket, CommandRunner runner, File tokenFile, String token,
+			long idleMillis) throws IOException {
+		serverSocket.setSoTimeout(POLL_INTERVAL);
+		long lastUsed = System.currentTimeMillis();
+		while (System.currentTimeMillis() - lastUsed < idleMillis && isOurs(tokenFile, token)) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (SocketTimeoutException e) {
+				continue;
+			}
+			try {
+				handle(socket, runner, token);
+			} catch (IOException e) {
+				LoaderLog.debug("Command connection failed: " + e);
+			} finally {
+				socket.close();
+				lastUsed = System.currentTimeMillis();
+			}
+		}
+	}
+
+	private static void handle(Socket socket, CommandRunner runner, String token) throws IOException {
+		// A client gets a few seconds to identify itself before the next one is served
+		socket.setSoTimeout(HEADER_TIMEOUT);
+		DataInputStream request = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		if (request.readInt() != PROTOCOL
+				|| !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+						request.readUTF().getBytes(StandardCharsets.UTF_8))) {
+			return;
+		}
+		String cwd = request.readUTF();
+		int count = request.readInt();
+		List<String> arguments = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			arguments.add(request.readUTF());
+		}
+		socket.setSoTimeout(0);
+
+		final DataOutputStream response = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		response.write(ACCEPTED);
+		response.flush();
+
+		PipedInputStream input = new PipedInputStream();
+		Thread feeder = feedInput(request, new PipedOutputStream(input));
+		PrintStream out = new PrintStream(new FrameOutputStream(response, OUT), true, "UTF-8");
+		PrintStream err = new PrintStream(new FrameOutputStream(response, ERR), true, "UTF-8");
+		int exitCode;
+		// The shell's WireBox config reads the working directory from here on every run
+		String previousCwd = System.getProperty("cfml.cli.pwd");
+		System.setProperty("cfml.cli.pwd", cwd);
+		try {
+			exitCode = runner.run(arguments, input, out, err);
+		} finally {
+			if (previousCwd != null) {
+				System.setProperty("cfml.cli.pwd", previousCwd);
+			}
+			feeder.interrupt();
+			input.close();
+		}
+		out.flush();
+		err.flush();
+		synchronized (response) {
+			response.writeByte(EXIT);
+			response.writeInt(exitCode);
+			response.flush();
+		}
+	}
+
+	/**
+	 * Copy the client's standard input to the daemon as length-prefixed chunks.
+	 * A length of -1 means it ended.
+	 */
+	private static void pumpInput(final InputStream in, final DataOutputStream request) {
+		Thread pump = new Thread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[8 * 1024];
+				try {
+					int count;
+					while ((count = in.read(buffer)) != -1) {
+						request.writeInt(count);
+						request.write(buffer, 0, count);
+						request.flush();
+					}
+					request.writeInt(-1);
+					request.flush();
+				} catch (IOException e) {
+					// The command finished and the connection is closed
+				}
+			}
+		}, "daemon-stdin");
+		pump.setDaemon(true);
+		pump.start();
+	}
+
+	/**
+	 * The other end of {@link #pumpInput}: feed the chunks into the command's
+	 * standard input.
+	 */
+	private static Thread feedInput(final DataInputStream request, final PipedOutputStream pipe) {
+		Thread feeder = new Thread(new Runnable() {
+			public void run() {
+				try {
+					int count;
+					while ((count = request.readInt()) != -1) {
+						byte[] chunk = new byte[count];
+						request.readFully(chunk);
+						pipe.write(chunk);
+						pipe.flush();
+					}
+				} catch (IOException e) {
+					// The client went away or the command finished
+				} finally {
+					try {
+						pipe.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}, "daemon-stdin");
+		feeder.setDaemon(true);
+		feeder.start();
+		return feeder;
+	}
+
+	/**
+	 * Writes everything as frames of one type: the type, a length and the bytes.
+	 */
+	private static class FrameOutputStream extends OutputStream {
+		private final DataOutputStream response;
+		private final byte type;
+
+		FrameOutputStream(DataOutputStream response, byte type) {
+			this.response = response;
+			this.type = type;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			synchronized (response) {
+				response.writeByte(type);
+				response.writeInt(len);
+				response.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (response) {
+				response.flush();
+			}
+		}
+	}
+
+	private static long idleMillis() {
+		int minutes = DEFAULT_IDLE_MINUTES;
+		try {
+			minutes = Integer.parseInt(System.getProperty(IDLE_PROPERTY, String.valueOf(DEFAULT_IDLE_MINUTES)).trim());
+		} catch (NumberFormatException e) {
+			LoaderLog.warn(IDLE_PROPERTY + " is not a number, using " + DEFAULT_IDLE_MINUTES);
+		}
+		return minutes * 60L * 1000L;
+	}
+
+	static String newToken() {
+		byte[] bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b));
+		}
+		return token.toString();
+	}
+
+	/**
+	 * @return Identifies the box binary, so a client never talks to a daemon
+	 *         started from another version
+	 */
+	static String binarySignature() {
+		File binary = new File(System.getProperty("java.class.path"));
+		return binary.getAbsolutePath() + ":" + binary.length() + ":" + binary.lastModified();
+	}
+
+	/**
+	 * Write the token file so only the user can read it. It is created with
+	 * owner-only permissions before anything is written to it, then moved into
+	 * place.
+	 */
+	static void writeTokenFile(File tokenFile, int port, String token) throws IOException {
+		Path staging = new File(tokenFile.getParentFile(), "." + tokenFile.getName() + ".tmp-" + System.nanoTime())
+				.toPath();
+		try {
+			if (Files.getFileStore(tokenFile.getParentFile().toPath()).supportsFileAttributeView("posix")) {
+				Files.createFile(staging,
+						PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+			} else {
+				// Windows keeps a user's profile, where the home lives, private to them
+				File file = Files.createFile(staging).toFile();
+				file.setReadable(false, false);
+				file.setReadable(true, true);
+				file.setWritable(false, false);
+				file.setWritable(true, true);
+			}
+			Properties properties = new Properties();
+			properties.setProperty("port", String.valueOf(port));
+			properties.setProperty("token", token);
+			properties.setProperty("binary", binarySignature());
+			OutputStream out = Files.newOutputStream(staging);
+			try {
+				properties.store(out, null);
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(staging, tokenFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(staging, tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(staging);
+		}
+	}
+
+	/**
+	 * @return The token file's contents, or null if it is missing or unreadable
+	 */
+	static Properties readTokenFile(File tokenFile) {
+		if (!tokenFile.isFile()) {
+			return null;
+		}
+		Properties properties = new Properties();
+		try {
+			InputStream in = new FileInputStream(tokenFile);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		if (properties.getProperty("port") == null || properties.getProperty("token") == null) {
+			return null;
+		}
+		return properties;
+	}
+
+	private static boolean isOurs(File tokenFile, String token) {
+		Properties properties = readTokenFile(tokenFile);
+		return properties != null && token.equals(properties.getProperty("token"));
+	}
+}
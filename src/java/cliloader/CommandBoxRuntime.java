@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.script.ScriptEngine;
+
+/**
+ * Runs CommandBox commands inside a host JVM without forking a new one per
+ * command. The runtime extracts and loads CommandBox once, keeps its class
+ * loader and CFML engine open between commands and only releases them on
+ * {@link #close()}.
+ *
+ * <pre>
+ * CommandBoxRuntime box = new CommandBoxRuntime("-commandbox_home=/opt/box");
+ * CommandBoxRuntime.Result result = box.run(Arrays.asList("version"));
+ * box.close();
+ * </pre>
+ *
+ * There is one runtime per JVM, and every command runs behind one global lock.
+ * The loader, the CommandBox home and the CFML engine are JVM-wide statics, so
+ * a second runtime can't be opened until the first is closed, and runtimes are
+ * not independent instances that could run commands side by side. Any thread
+ * may call run, but commands execute one at a time: the shell reads its
+ * arguments and reports its exit code through system properties and writes to
+ * System.out and System.err, which are swapped to the command's streams only
+ * while it runs. Anything else the host writes to those streams meanwhile ends
+ * up in the command's output.
+ *
+ * While a runtime is being opened the loader is in embedded mode, so a failure
+ * to set up CommandBox throws an IOException instead of exiting the JVM.
+ *
+ * What a run saves over "box" is the JVM start, the library and CFML
+ * extraction checks, the class loader and the CFML engine start. Each run
+ * still evaluates Bootstrap.cfm, which builds a new WireBox injector and Shell,
+ * because the shell keeps per-command state such as the exit code, reload flag
+ * and working directory in the instance, and the bootstrap has no way to hand
+ * a previous shell back. Expect a command to cost roughly what the shell's own
+ * startup costs, not nothing.
+ *
+ * Loader flags are only read by the constructor. Any in a command, such as
+ * -clidebug or -commandbox_home, are removed the same way the loader removes
+ * them from the command line and have no effect.
+ */
+public class CommandBoxRuntime implements Closeable {
+
+	private static CommandBoxRuntime open;
+
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private final URLClassLoader classLoader;
+	private final String uri;
+	private final String webroot;
+	private final String bootstrap;
+	private final FutureTask<ScriptEngine> engineTask;
+	private boolean closed;
+
+	/**
+	 * The exit code, output and error output of a command.
+	 */
+	public static class Result {
+		private final int exitCode;
+		private final String output;
+		private final String errorOutput;
+
+		Result(int exitCode, String output, String errorOutput) {
+			this.exitCode = exitCode;
+			this.output = output;
+			this.errorOutput = errorOutput;
+		}
+
+		public int getExitCode() {
+			return exitCode;
+		}
+
+		public String getOutput() {
+			return output;
+		}
+
+		/**
+		 * What the command wrote to System.err
+		 */
+		public String getErrorOutput() {
+			return errorOutput;
+		}
+	}
+
+	/**
+	 * Set up CommandBox and start its CFML engine in the background.
+	 *
+	 * @param loaderArguments Loader flags such as -commandbox_home=/path or -clidebug
+	 * @throws IOException if CommandBox can't be set up or its shell isn't found
+	 */
+	public CommandBoxRuntime(String... loaderArguments) throws IOException {
+		synchronized (CommandBoxRuntime.class) {
+			if (open != null) {
+				throw new IllegalStateException("A CommandBoxRuntime is already open in this JVM");
+			}
+			LoaderCLIMain.setEmbedded(true);
+			try {
+				if (!LoaderCLIMain.isInitialized()) {
+					LoaderCLIMain.initialize(loaderArguments);
+				}
+				uri = LoaderCLIMain.resolveShell(new ArrayList<String>(Arrays.asList(loaderArguments)));
+				if (uri == null) {
+					throw new IOException("Could not find the CommandBox shell");
+				}
+				classLoader = LoaderCLIMain.getClassLoader();
+				webroot = LoaderCLIMain.getWebroot(uri);
+				bootstrap = LoaderCLIMain.getBootstrap(uri, webroot);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			engineTask = LoaderCLIMain.startEngine(classLoader, webroot);
+			open = this;
+		}
+	}
+
+	/**
+	 * Run a command with no input and capture its output and error output.
+	 *
+	 * @param command The command and its arguments, as they would be typed after
+	 *                "box". Loader flags are removed.
+	 * @return The exit code and everything the command printed
+	 */
+	public Result run(List<String> command) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ByteArrayOutputStream errorOutput = new ByteArrayOutputStream();
+		PrintStream printStream = new PrintStream(output, true, "UTF-8");
+		PrintStream errorStream = new PrintStream(errorOutput, true, "UTF-8");
+		int exitCode = run(command, new ByteArrayInputStream(new byte[0]), printStream, errorStream);
+		printStream.flush();
+		errorStream.flush();
+		try {
+			return new Result(exitCode, output.toString("UTF-8"), errorOutput.toString("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Run a command with its output and error output going to the same stream.
+	 *
+	 * @see #run(List, InputStream, PrintStream, PrintStream)
+	 */
+	public int run(List<String> command, InputStream inputStream, PrintStream printStream) throws IOException {
+		return run(command, inputStream, printStream, printStream);
+	}
+
+	/**
+	 * Run a command, waiting for any command already running to finish first.
+	 *
+	 * @param command     The command and its arguments, as they would be typed after
+	 *                    "box". Loader flags are removed.
+	 * @param inputStream What the command reads as standard input. It is not closed.
+	 * @param printStream Where the command's output goes
+	 * @param errorStream Where the command's error output goes
+	 * @return The command's exit code
+	 */
+	public int run(List<String> command, InputStream inputStream, PrintStream printStream, PrintStream errorStream)
+			throws IOException {
+		ArrayList<String> cliArguments = new ArrayList<String>(
+				LoaderOptions.parse(command, LoaderCLIMain.getName()).getArguments());
+		lock.lock();
+		InputStream originalIn = System.in;
+		PrintStream originalOut = System.out;
+		PrintStream originalErr = System.err;
+		try {
+			if (closed) {
+				throw new IllegalStateException("This CommandBoxRuntime has been closed");
+			}
+			System.setIn(new NonClosingInputStream(inputStream));
+			System.setOut(printStream);
+			System.setErr(errorStream);
+			System.setProperty("cfml.cli.exitCode", "0");
+
+			LoaderCLIMain.prepareArguments(cliArguments, uri, printStream);
+			try {
+				LoaderCLIMain.evalBootstrap(LoaderCLIMain.awaitEngine(engineTask), webroot, bootstrap, printStream);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				e.printStackTrace(errorStream);
+				return 1;
+			}
+			return LoaderCLIMain.readExitCode(printStream);
+		} finally {
+			printStream.flush();
+			errorStream.flush();
+			System.setErr(originalErr);
+			System.setOut(originalOut);
+			System.setIn(originalIn);
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Release the class loader. Waits for a running command to finish.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			engineTask.cancel(false);
+			LoaderCLIMain.releaseClassLoader();
+		} finally {
+			lock.unlock();
+			synchronized (CommandBoxRuntime.class) {
+				if (open == this) {
+					open = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+
+/**
+ * Waits for the FusionReactor agent on a background thread so the loader can
+ * keep building the class loader and script engine in the meantime.
+ * The wait is bounded by the cfml.cli.fusionreactor.timeout system property
+ * (milliseconds, default 5000). Once the agent is initialized, the "CLI Java
+ * Startup" transaction is created, unless the CFML engine has already started
+ * running, in which case there is no Java startup left to track.
+ */
+class FusionReactorHandshake {
+
+	public static final String TIMEOUT_PROPERTY = "cfml.cli.fusionreactor.timeout";
+
+	private static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+	private static final long POLL_MILLIS = 50;
+	private static final String FRAPI_CLASS = "com.intergral.fusionreactor.api.FRAPI";
+
+	// Resolved once per JVM. A null getInstance means the agent isn't installed.
+	private static Method getInstance;
+	private static Method isInitialized;
+	private static Method createTrackedTransaction;
+	private static Method setTransactionApplicationName;
+	private static Method setDescription;
+	private static boolean resolved;
+
+	private final ClassLoader classLoader;
+	private final long timeoutMillis;
+	private final boolean debug;
+	private final PrintStream printStream;
+	private final Thread thread;
+	private volatile boolean engineStarted;
+	private volatile Object transaction;
+
+	private FusionReactorHandshake(ClassLoader classLoader, long timeoutMillis, boolean debug, PrintStream printStream) {
+		this.classLoader = classLoader;
+		this.timeoutMillis = timeoutMillis;
+		this.debug = debug;
+		this.printStream = printStream;
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				handshake();
+			}
+		}, "CommandBox FusionReactor handshake");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Start waiting for FusionReactor in the background.
+	 *
+	 * @param classLoader The class loader the agent's API is visible to
+	 * @param debug       Print progress when true
+	 * @param printStream Where to print progress
+	 * @return The running handshake
+	 */
+	public static FusionReactorHandshake start(ClassLoader classLoader, boolean debug, PrintStream printStream) {
+		long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+		try {
+			timeoutMillis = Long.parseLong(System.getProperty(TIMEOUT_PROPERTY, String.valueOf(DEFAULT_TIMEOUT_MILLIS)).trim());
+		} catch (NumberFormatException e) {
+			if (debug) {
+				printStream.println("Invalid " + TIMEOUT_PROPERTY + ", using " + DEFAULT_TIMEOUT_MILLIS + "ms");
+			}
+		}
+		FusionReactorHandshake handshake = new FusionReactorHandshake(classLoader, timeoutMillis, debug, printStream);
+		handshake.thread.start();
+		return handshake;
+	}
+
+	private static synchronized boolean resolve(ClassLoader classLoader) throws ReflectiveOperationException {
+		if (!resolved) {
+			resolved = true;
+			Class<?> FRAPIClass;
+			try {
+				FRAPIClass = classLoader.loadClass(FRAPI_CLASS);
+			} catch (ClassNotFoundException e) {
+				return false;
+			}
+			getInstance = FRAPIClass.getMethod("getInstance", (Class[]) null);
+			isInitialized = FRAPIClass.getMethod("isInitialized", (Class[]) null);
+			createTrackedTransaction = FRAPIClass.getMethod("createTrackedTransaction", String.class);
+			setTransactionApplicationName = FRAPIClass.getMethod("setTransactionApplicationName", String.class);
+		}
+		return getInstance != null;
+	}
+
+	private void handshake() {
+		try {
+			if (!resolve(classLoader)) {
+				return;
+			}
+			long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+			boolean waiting = false;
+			Object FRAPIInstance;
+			while ((FRAPIInstance = getInstance.invoke(null, (Object[]) null)) == null
+					|| !(Boolean) isInitialized.invoke(FRAPIInstance, (Object[]) null)) {
+				if (System.nanoTime() - deadline > 0) {
+					if (debug) {
+						printStream.println("Gave up waiting on FusionReactor after " + timeoutMillis + "ms");
+					}
+					return;
+				}
+				if (debug && !waiting) {
+					printStream.println("Waiting on FusionReactor to load...");
+				}
+				waiting = true;
+				Thread.sleep(POLL_MILLIS);
+			}
+			attach(FRAPIInstance);
+		} catch (Throwable e) {
+			if (debug) {
+				printStream.println(e.getMessage());
+			}
+		}
+	}
+
+	private synchronized void attach(Object FRAPIInstance) throws ReflectiveOperationException {
+		if (engineStarted) {
+			if (debug) {
+				printStream.println("FusionReactor ready after the CFML engine started, not tracking Java startup");
+			}
+			return;
+		}
+		Object FRTrans = createTrackedTransaction.invoke(FRAPIInstance, "CLI Java Startup");
+		setTransactionApplicationName.invoke(FRAPIInstance, "CommandBox CLI");
+		synchronized (FusionReactorHandshake.class) {
+			if (setDescription == null) {
+				setDescription = FRTrans.getClass().getMethod("setDescription", String.class);
+			}
+		}
+		setDescription.invoke(FRTrans, "Java Code from start of JVM to CF code running");
+		transaction = FRTrans;
+	}
+
+	/**
+	 * Called right before the CFML engine runs. Nothing is waited on: if the agent
+	 * isn't ready yet, the Java startup transaction is simply not created.
+	 *
+	 * @return The "CLI Java Startup" transaction, or null if FusionReactor isn't ready
+	 */
+	public synchronized Object engineStarting() {
+		engineStarted = true;
+		return transaction;
+	}
+}
@@ -0,0 +1,539 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Loads classes and resources from the jars in the lib directory using an
+ * index of which jars hold which directories, so a lookup opens only the jars
+ * that can contain it instead of probing every jar on the class path. Names no
+ * jar can contain fail without touching any jar at all.
+ *
+ * Jars named in a jar's manifest Class-Path are searched right after that jar,
+ * the same as URLClassLoader does. A jar that can't be read is skipped and, if
+ * nothing else has the class, the regular URLClassLoader lookup gets a try.
+ *
+ * The index is saved to a file and reused as long as the name, size and
+ * modified time of every jar still match and its checksum is intact. It is only
+ * saved when every jar could be read, and it is replaced atomically so another
+ * process never sees half of it. An index that was built while a jar couldn't be
+ * read is built again the first time it can't place a name. Multi-release jars
+ * are left to the regular URLClassLoader lookup so their versioned entries are
+ * honoured.
+ */
+public class JarIndexClassLoader extends URLClassLoader {
+
+	static {
+		registerAsParallelCapable();
+	}
+
+	private static final String SIGNATURE_KEY = "@jars";
+	private static final String GIVEN_SIGNATURE_KEY = "@given";
+	private static final String SEARCH_PATH_KEY = "@path";
+	private static final String CHECKSUM_KEY = "@check";
+	private static final int[] NO_JARS = new int[0];
+
+	// The jars passed in plus the ones their Class-Path entries add, in search order
+	private final File[] jars;
+	private final URL[] jarURLs;
+	private final JarFile[] jarFiles;
+	private final boolean[] multiRelease;
+	private final File indexFile;
+	private final String givenSignature;
+	// Directory of an entry, such as "org/jline/reader/", to the positions of the jars holding it
+	private volatile Map<String, int[]> index;
+	// Set when the index was built while a jar couldn't be read, so it may be missing directories
+	private volatile boolean incomplete;
+
+	/**
+	 * @param jars      The jars, in class path order
+	 * @param parent    The parent class loader
+	 * @param indexFile Where to cache the index. May be null to always build it.
+	 * @throws MalformedURLException if a jar can't be turned into a URL
+	 */
+	public JarIndexClassLoader(File[] jars, ClassLoader parent, File indexFile) throws MalformedURLException {
+		super(toURLs(jars), parent);
+		Properties saved = Util.readManifest(indexFile);
+		File[] searchPath = savedSearchPath(jars, saved);
+		if (searchPath == null) {
+			searchPath = withClassPath(jars);
+			saved.clear();
+		}
+		this.jars = searchPath;
+		this.jarURLs = toURLs(searchPath);
+		this.jarFiles = new JarFile[searchPath.length];
+		this.multiRelease = new boolean[searchPath.length];
+		this.indexFile = indexFile;
+		this.givenSignature = signature(jars);
+		this.index = loadIndex(saved);
+	}
+
+	/**
+	 * @return The search path saved with the index, or null if it has to be worked
+	 *         out again because any of the jars changed
+	 */
+	private static File[] savedSearchPath(File[] jars, Properties saved) {
+		String path = saved.getProperty(SEARCH_PATH_KEY);
+		if (path == null || !signature(jars).equals(saved.getProperty(GIVEN_SIGNATURE_KEY))) {
+			return null;
+		}
+		String[] names = path.split(java.util.regex.Pattern.quote(File.pathSeparator));
+		File[] searchPath = new File[names.length];
+		for (int i = 0; i < names.length; i++) {
+			searchPath[i] = new File(names[i]);
+		}
+		return signature(searchPath).equals(saved.getProperty(SIGNATURE_KEY)) ? searchPath : null;
+	}
+
+	/**
+	 * Add the jars each jar's manifest Class-Path points to right after it,
+	 * recursively, skipping any jar that is already on the path.
+	 */
+	private static File[] withClassPath(File[] jars) {
+		Set<File> searchPath = new LinkedHashSet<File>();
+		for (File jar : jars) {
+			addWithClassPath(jar.getAbsoluteFile(), searchPath);
+		}
+		return searchPath.toArray(new File[searchPath.size()]);
+	}
+
+	private static void addWithClassPath(File jar, Set<File> searchPath) {
+		if (!searchPath.add(jar)) {
+			return;
+		}
+		String classPath = null;
+		JarFile jarFile = null;
+		try {
+			jarFile = new JarFile(jar);
+			Manifest manifest = jarFile.getManifest();
+			if (manifest != null) {
+				classPath = manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+			}
+		} catch (IOException e) {
+			// An unreadable jar can't name other jars either
+		} finally {
+			if (jarFile != null) {
+				try {
+					jarFile.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		if (classPath == null) {
+			return;
+		}
+		for (String entry : classPath.trim().split("\\s+")) {
+			try {
+				URL url = new URL(jar.toURI().toURL(), entry);
+				if ("file".equals(url.getProtocol())) {
+					File referenced = new File(url.toURI()).getAbsoluteFile();
+					if (referenced.isFile()) {
+						addWithClassPath(referenced, searchPath);
+					}
+				}
+			} catch (Exception e) {
+				// URLClassLoader ignores entries it can't make sense of too
+			}
+		}
+	}
+
+	private static URL[] toURLs(File[] jars) throws MalformedURLException {
+		URL[] urls = new URL[jars.length];
+		for (int i = 0; i < jars.length; i++) {
+			urls[i] = jars[i].toURI().toURL();
+		}
+		return urls;
+	}
+
+	private static String signature(File[] jars) {
+		StringBuilder signature = new StringBuilder();
+		for (File jar : jars) {
+			signature.append(jar.getName()).append(':').append(jar.length()).append(':')
+					.append(jar.lastModified()).append(';');
+		}
+		return signature.toString();
+	}
+
+	private Map<String, int[]> loadIndex(Properties saved) {
+		String signature = signature(jars);
+		if (signature.equals(saved.getProperty(SIGNATURE_KEY))
+				&& checksum(saved).equals(saved.getProperty(CHECKSUM_KEY))) {
+			saved.remove(SIGNATURE_KEY);
+			saved.remove(GIVEN_SIGNATURE_KEY);
+			saved.remove(SEARCH_PATH_KEY);
+			saved.remove(CHECKSUM_KEY);
+			Map<String, int[]> loaded = new HashMap<String, int[]>(saved.size() * 2);
+			try {
+				for (String dir : saved.stringPropertyNames()) {
+					String[] positions = saved.getProperty(dir).split(",");
+					int[] owners = new int[positions.length];
+					for (int i = 0; i < positions.length; i++) {
+						owners[i] = Integer.parseInt(positions[i]);
+						if (owners[i] < 0 || owners[i] >= jars.length) {
+							throw new NumberFormatException(positions[i]);
+						}
+					}
+					loaded.put(dir, owners);
+				}
+				return loaded;
+			} catch (NumberFormatException e) {
+				// A damaged index is simply rebuilt
+			}
+		}
+		return buildAndSaveIndex();
+	}
+
+	/**
+	 * Index every jar and save the result, unless a jar couldn't be read. An index
+	 * missing a jar's directories would otherwise make its classes unloadable until
+	 * the jars change again.
+	 */
+	private Map<String, int[]> buildAndSaveIndex() {
+		List<File> unreadable = new ArrayList<File>();
+		Map<String, int[]> built = buildIndex(unreadable);
+		incomplete = !unreadable.isEmpty();
+		if (indexFile == null || incomplete) {
+			return built;
+		}
+		Properties toSave = new Properties();
+		toSave.setProperty(SIGNATURE_KEY, signature(jars));
+		toSave.setProperty(GIVEN_SIGNATURE_KEY, givenSignature);
+		StringBuilder searchPath = new StringBuilder();
+		for (File jar : jars) {
+			if (searchPath.length() > 0) {
+				searchPath.append(File.pathSeparator);
+			}
+			searchPath.append(jar.getPath());
+		}
+		toSave.setProperty(SEARCH_PATH_KEY, searchPath.toString());
+		for (Map.Entry<String, int[]> entry : built.entrySet()) {
+			StringBuilder positions = new StringBuilder();
+			for (int position : entry.getValue()) {
+				if (positions.length() > 0) {
+					positions.append(',');
+				}
+				positions.append(position);
+			}
+			toSave.setProperty(entry.getKey(), positions.toString());
+		}
+		toSave.setProperty(CHECKSUM_KEY, checksum(toSave));
+		try {
+			Util.writeManifest(indexFile, toSave);
+		} catch (IOException e) {
+			// Not being able to cache the index only costs time on the next start
+		}
+		return built;
+	}
+
+	/**
+	 * CRC32 of every property but the checksum itself, in key order
+	 */
+	private static String checksum(Properties properties) {
+		List<String> keys = new ArrayList<String>(properties.stringPropertyNames());
+		keys.remove(CHECKSUM_KEY);
+		Collections.sort(keys);
+		CRC32 crc = new CRC32();
+		for (String key : keys) {
+			crc.update((key + '=' + properties.getProperty(key) + '\n').getBytes(StandardCharsets.UTF_8));
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+	private Map<String, int[]> buildIndex(List<File> unreadable) {
+		Map<String, Set<Integer>> owners = new HashMap<String, Set<Integer>>();
+		for (int i = 0; i < jars.length; i++) {
+			ZipFile zip = null;
+			try {
+				zip = new ZipFile(jars[i]);
+				Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements()) {
+					String dir = directoryOf(entries.nextElement().getName());
+					Set<Integer> jarsForDir = owners.get(dir);
+					if (jarsForDir == null) {
+						jarsForDir = new LinkedHashSet<Integer>();
+						owners.put(dir, jarsForDir);
+					}
+					jarsForDir.add(i);
+				}
+			} catch (IOException e) {
+				// An unreadable jar can't serve anything for now; URLClassLoader would skip it too
+				unreadable.add(jars[i]);
+			} finally {
+				if (zip != null) {
+					try {
+						zip.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+		Map<String, int[]> built = new HashMap<String, int[]>(owners.size() * 2);
+		for (Map.Entry<String, Set<Integer>> entry : owners.entrySet()) {
+			int[] positions = new int[entry.getValue().size()];
+			int p = 0;
+			for (Integer position : entry.getValue()) {
+				positions[p++] = position;
+			}
+			built.put(entry.getKey(), positions);
+		}
+		return built;
+	}
+
+	private static String directoryOf(String entryName) {
+		int slash = entryName.endsWith("/") ? entryName.lastIndexOf('/', entryName.length() - 2)
+				: entryName.lastIndexOf('/');
+		return slash == -1 ? "" : entryName.substring(0, slash + 1);
+	}
+
+	private int[] jarsFor(String resourceName) {
+		String dir = directoryOf(resourceName);
+		int[] owners = index.get(dir);
+		if (owners == null && incomplete) {
+			// The directory may be in a jar that couldn't be read when the index was built
+			reindex();
+			owners = index.get(dir);
+		}
+		return owners == null ? NO_JARS : owners;
+	}
+
+	private synchronized void reindex() {
+		if (incomplete) {
+			index = buildAndSaveIndex();
+		}
+	}
+
+	private JarFile jarFile(int position) throws IOException {
+		synchronized (jarFiles) {
+			if (jarFiles[position] == null) {
+				JarFile jarFile = new JarFile(jars[position]);
+				Manifest manifest = jarFile.getManifest();
+				multiRelease[position] = manifest != null
+						&& "true".equalsIgnoreCase(manifest.getMainAttributes().getValue("Multi-Release"));
+				jarFiles[position] = jarFile;
+			}
+			return jarFiles[position];
+		}
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		String path = name.replace('.', '/').concat(".class");
+		IOException failure = null;
+		for (int position : jarsFor(path)) {
+			try {
+				JarFile jarFile = jarFile(position);
+				if (multiRelease[position]) {
+					return super.findClass(name);
+				}
+				JarEntry entry = jarFile.getJarEntry(path);
+				if (entry != null) {
+					return defineClass(name, jarFile, entry, position);
+				}
+			} catch (IOException e) {
+				// Keep looking in the other jars
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			// A jar that should have been able to answer couldn't be read, so let the
+			// regular lookup have a go before giving up
+			try {
+				return super.findClass(name);
+			} catch (ClassNotFoundException e) {
+				e.addSuppressed(failure);
+				throw e;
+			}
+		}
+		throw new ClassNotFoundException(name);
+	}
+
+	private Class<?> defineClass(String name, JarFile jarFile, JarEntry entry, int position) throws IOException {
+		byte[] bytes;
+		InputStream in = jarFile.getInputStream(entry);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					entry.getSize() > 0 ? (int) entry.getSize() : 8 * 1024);
+			Util.writeStreamTo(in, out, 8 * 1024);
+			bytes = out.toByteArray();
+		} finally {
+			in.close();
+		}
+
+		int lastDot = name.lastIndexOf('.');
+		if (lastDot != -1) {
+			definePackageIfNeeded(name.substring(0, lastDot), jarFile.getManifest(), jarURLs[position]);
+		}
+		// Signers are only known once the entry has been read in full
+		CodeSigner[] signers = entry.getCodeSigners();
+		return defineClass(name, bytes, 0, bytes.length, new CodeSource(jarURLs[position], signers));
+	}
+
+	@SuppressWarnings("deprecation")
+	private void definePackageIfNeeded(String packageName, Manifest manifest, URL url) {
+		if (getPackage(packageName) != null) {
+			return;
+		}
+		try {
+			if (manifest != null) {
+				definePackage(packageName, manifest, url);
+			} else {
+				definePackage(packageName, null, null, null, null, null, null, null);
+			}
+		} catch (IllegalArgumentException e) {
+			// Another thread defined it first
+		}
+	}
+
+	@Override
+	protected Package definePackage(String name, Manifest manifest, URL url) {
+		// Same as URLClassLoader, which doesn't expose its version for use from findClass
+		String path = name.replace('.', '/').concat("/");
+		Attributes attributes = manifest.getAttributes(path);
+		Attributes main = manifest.getMainAttributes();
+		return definePackage(name,
+				attribute(attributes, main, Attributes.Name.SPECIFICATION_TITLE),
+				attribute(attributes, main, Attributes.Name.SPECIFICATION_VERSION),
+				attribute(attributes, main, Attributes.Name.SPECIFICATION_VENDOR),
+				attribute(attributes, main, Attributes.Name.IMPLEMENTATION_TITLE),
+				attribute(attributes, main, Attributes.Name.IMPLEMENTATION_VERSION),
+				attribute(attributes, main, Attributes.Name.IMPLEMENTATION_VENDOR),
+				"true".equalsIgnoreCase(attribute(attributes, main, Attributes.Name.SEALED)) ? url : null);
+	}
+
+	private static String attribute(Attributes attributes, Attributes main, Attributes.Name name) {
+		String value = attributes != null ? attributes.getValue(name) : null;
+		return value != null ? value : main.getValue(name);
+	}
+
+	@Override
+	public URL findResource(String name) {
+		for (int position : jarsFor(name)) {
+			try {
+				JarFile jarFile = jarFile(position);
+				if (multiRelease[position]) {
+					return super.findResource(name);
+				}
+				if (jarFile.getEntry(name) != null) {
+					return jarEntryURL(position, name);
+				}
+			} catch (IOException e) {
+				// Keep looking in the other jars
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Enumeration<URL> findResources(String name) throws IOException {
+		int[] owners = jarsFor(name);
+		List<URL> found = new ArrayList<URL>(owners.length);
+		for (int position : owners) {
+			try {
+				if (jarFile(position).getEntry(name) != null) {
+					found.add(jarEntryURL(position, name));
+				}
+			} catch (IOException e) {
+				// Keep looking in the other jars
+				continue;
+			}
+			if (multiRelease[position]) {
+				return super.findResources(name);
+			}
+		}
+		return Collections.enumeration(found);
+	}
+
+	private URL jarEntryURL(int position, String name) throws MalformedURLException {
+		return new URL("jar:" + jarURLs[position] + "!/" + encodePath(name));
+	}
+
+	/**
+	 * Percent-encode a resource name for a URL the way URLClassLoader does, so the
+	 * URLs match the ones it would have returned
+	 */
+	static String encodePath(String name) {
+		StringBuilder encoded = null;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c < 0x80 && !needsEncoding(c)) {
+				if (encoded != null) {
+					encoded.append(c);
+				}
+				continue;
+			}
+			if (encoded == null) {
+				encoded = new StringBuilder(name.length() + 16).append(name, 0, i);
+			}
+			int end = i + 1;
+			if (Character.isHighSurrogate(c) && end < name.length() && Character.isLowSurrogate(name.charAt(end))) {
+				end++;
+			}
+			for (byte b : name.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+				encoded.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+			}
+			i = end - 1;
+		}
+		return encoded == null ? name : encoded.toString();
+	}
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private static boolean needsEncoding(char c) {
+		return c <= 0x20 || c == 0x7F || "\"#%<>?[\\]^`{|}".indexOf(c) != -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (jarFiles) {
+			for (int i = 0; i < jarFiles.length; i++) {
+				if (jarFiles[i] != null) {
+					try {
+						jarFiles[i].close();
+					} catch (IOException e) {
+					}
+					jarFiles[i] = null;
+				}
+			}
+		}
+		super.close();
+	}
+}
@@ -25,12 +25,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
@@ -38,16 +40,19 @@ import java.security.Security;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
 
 import net.minidev.json.JSONArray;
 
@@ -66,36 +71,6 @@ public class LoaderCLIMain {
 		}
 	}
 
-	private static class log {
-		private static volatile PrintStream printStream;
-
-		public static void printstream(PrintStream stream) {
-			printStream = stream;
-		}
-
-		public static PrintStream printstream() {
-			return printStream != null ? printStream : System.out;
-		}
-
-		public static void debug(String message) {
-			if (debug) {
-				printstream().println(message.replace("/n", CR));
-			}
-		}
-
-		public static void error(String message) {
-			printstream().println(message.replace("/n", CR));
-		}
-
-		public static void warn(String message) {
-			printstream().println(message.replace("/n", CR));
-		}
-
-		public static void info(String message) {
-			printstream().println(message.replace("/n", CR));
-		}
-	}
-
 	public static class PrefixFilter implements FilenameFilter {
 		private final String prefix;
 
@@ -113,6 +88,12 @@ public class LoaderCLIMain {
 	private static URLClassLoader _classLoader;
 	private static String CFML_VERSION_PATH = "cliloader/cfml.version";
 	private static String CFML_ZIP_PATH = "cfml.zip";
+	private static String CDS_DIR = "cds";
+	// Set by the box launcher to the archive it passes to -XX:SharedArchiveFile
+	private static String CDS_ARCHIVE_PROPERTY = "cfml.cli.cds.archive";
+	private static String MANIFEST_DIR = ".manifest";
+	private static String LIB_INDEX_FILE = "lib.index";
+	private static String CFCLASSES_VERSION_FILE = "cfclasses.version";
 	private static ClassLoader classLoader = Thread.currentThread()
 			.getContextClassLoader();
 	private static File CLI_HOME;
@@ -121,6 +102,8 @@ public class LoaderCLIMain {
 			.toString();
 	private static Boolean debug = false;
 	private static Boolean initialized = false;
+	private static volatile boolean embedded = false;
+	private static File daemonHome;
 	private static String ENGINECONF_ZIP_PATH = "engine.zip";
 	private static int exitCode = 0;
 	private static String LIB_ZIP_PATH = "libs.zip";
@@ -148,7 +131,7 @@ public class LoaderCLIMain {
 	public static void execute(ArrayList<String> cliArguments)
 			throws ClassNotFoundException, NoSuchMethodException,
 			SecurityException, IOException {
-		log.debug("Running in CLI mode");
+		LoaderLog.debug("Running in CLI mode");
 
 		System.setIn(new NonClosingInputStream(System.in));
 
@@ -164,8 +147,8 @@ public class LoaderCLIMain {
 	public static void execute(ArrayList<String> cliArguments, InputStream inputStream, PrintStream printStream)
 			throws ClassNotFoundException, NoSuchMethodException,
 			SecurityException, IOException {
-		log.printstream(printStream);
-		log.debug("Running in CLI mode");
+		LoaderLog.printstream(printStream);
+		LoaderLog.debug("Running in CLI mode");
 		if (!initialized) {
 			try {
 				initialize(cliArguments.toArray(new String[cliArguments.size()]));
@@ -175,23 +158,88 @@ public class LoaderCLIMain {
 			}
 		}
 		removeInternalArguments(cliArguments);
-		String uri = null;
+		// Let FusionReactor finish loading while the class loader and engine are built
+		FusionReactorHandshake frHandshake = FusionReactorHandshake.start(classLoader, debug, printStream);
+		String uri = resolveShell(cliArguments);
+		if (uri == null) {
+			exitCode = 1;
+			return;
+		}
+
+		URLClassLoader cl = getClassLoader();
+		StartupTimeline.mark("loader.classLoader");
+
+		String webroot = getWebroot(uri);
+		String bootstrap = getBootstrap(uri, webroot);
+
+		// Start the CFML engine now and finish processing the arguments while it loads
+		FutureTask<ScriptEngine> engineTask = startEngine(cl, webroot);
+
+		prepareArguments(cliArguments, uri, printStream);
+
+		try {
+
+			ScriptEngine engine = awaitEngine(engineTask);
+			FRTrans = frHandshake.engineStarting();
+			evalBootstrap(engine, webroot, bootstrap, printStream);
+
+		} catch (Exception e) {
+			exitCode = 1;
+			e.printStackTrace();
+			if (e.getCause() != null) {
+				printStream.println("Cause:");
+				e.getCause().printStackTrace();
+			}
+		}
+
+		exitCode = readExitCode(printStream);
+
+		releaseClassLoader();
+		printStream.flush();
+	}
+
+	/**
+	 * Find the shell's bootstrap .cfm, in the home or as given.
+	 *
+	 * @return The canonical path of the shell, or null if it doesn't exist
+	 */
+	static String resolveShell(ArrayList<String> cliArguments) throws IOException {
 		File home = getCLI_HOME();
 		if (home == null) {
-			String[] arguments = cliArguments.toArray(new String[cliArguments.size()]);
-			Map<String, String> config = toMap(arguments);
-			home = getCLI_HOME(cliArguments, System.getProperties(), arguments, config);
+			home = getCLI_HOME(LoaderOptions.parse(cliArguments, getName()), System.getProperties(), null);
 		}
 		String shellPath = getShellPath();
 		if (new File(home, shellPath).exists()) {
-			uri = new File(getCLI_HOME(), getShellPath()).getCanonicalPath();
+			return new File(getCLI_HOME(), getShellPath()).getCanonicalPath();
 		} else if (new File(getShellPath()).exists()) {
-			uri = new File(getShellPath()).getCanonicalPath();
-		} else {
-			log.error("Could not find shell:" + getShellPath());
-			exitCode = 1;
-			return;
+			return new File(getShellPath()).getCanonicalPath();
 		}
+		LoaderLog.error("Could not find shell:" + getShellPath());
+		return null;
+	}
+
+	/**
+	 * @return The "webroot", which is the drive root where CommandBox's home lives
+	 */
+	static String getWebroot(String uri) {
+		return Paths.get(uri).toAbsolutePath().getRoot().toString();
+	}
+
+	/**
+	 * @return The bootstrap, the first .cfm file we will cfinclude from the "webroot"
+	 */
+	static String getBootstrap(String uri, String webroot) {
+		// Escape backslash in webroot since replace uses a regular expression
+		return "/" + Paths.get(uri).toAbsolutePath().toString().replaceFirst(webroot.replace("\\", "\\\\"), "");
+	}
+
+	/**
+	 * Turn "box foo.cfm" and "box foo.boxr" into the commands that run them and
+	 * hand the arguments to the shell through the cfml.cli.argument* system
+	 * properties.
+	 */
+	static void prepareArguments(ArrayList<String> cliArguments, String uri, PrintStream printStream)
+			throws IOException {
 		// Check for "box foo.cfm" or "box foo.cfm param1 ..."
 		// This is mostly just for backwards compat and to enforce consistency.
 		if (cliArguments.size() > 0
@@ -200,7 +248,7 @@ public class LoaderCLIMain {
 				&& (cliArguments.get(0).toLowerCase().endsWith(".cfm")
 						|| isShebang(new File(cliArguments.get(0)).getCanonicalPath()))) {
 
-			log.debug("Funneling: " + cliArguments.get(0) + " through execute command.");
+			LoaderLog.debug("Funneling: " + cliArguments.get(0) + " through execute command.");
 
 			String CFMLFile = new File(cliArguments.get(0)).getCanonicalPath();
 
@@ -212,7 +260,7 @@ public class LoaderCLIMain {
 
 			// Funnel through the exec command.
 			cliArguments.add(0, "exec");
-			log.debug("Executing: " + uri);
+			LoaderLog.debug("Executing: " + uri);
 
 		} else if (cliArguments.size() > 0
 				&& new File(cliArguments.get(0)).isFile()) {
@@ -220,7 +268,7 @@ public class LoaderCLIMain {
 			String filename = cliArguments.get(0).toLowerCase();
 			// This will force the shell to run the recipe command
 			if (filename.endsWith(".rs") || filename.endsWith(".boxr")) {
-				log.debug("Executing batch file: " + filename);
+				LoaderLog.debug("Executing batch file: " + filename);
 				cliArguments.add(0, "recipe");
 			}
 		} else {
@@ -229,44 +277,6 @@ public class LoaderCLIMain {
 			}
 		}
 
-		try {
-			Class FRAPIClass = classLoader.loadClass("com.intergral.fusionreactor.api.FRAPI");
-			Method getInstance = FRAPIClass.getMethod("getInstance", (Class[]) null);
-
-			while (getInstance.invoke(FRAPIClass, (Object[]) null) == null) {
-				if (debug) {
-					printStream.println("Waiting on FusionReactor to load...");
-				}
-				Thread.sleep(500);
-			}
-			Object FRAPIInstance = getInstance.invoke(FRAPIClass, (Object[]) null);
-			Method isInitialized = FRAPIInstance.getClass().getMethod("isInitialized", (Class[]) null);
-			while (!(Boolean) isInitialized.invoke(FRAPIInstance, (Object[]) null)) {
-				if (debug) {
-					printStream.println("Waiting on FusionReactor to load...");
-				}
-				Thread.sleep(500);
-			}
-
-			Method createTrackedTransaction = FRAPIInstance.getClass().getMethod("createTrackedTransaction",
-					String.class);
-
-			FRTrans = createTrackedTransaction.invoke(FRAPIInstance, "CLI Java Startup");
-
-			Method setTransactionApplicationName = FRAPIClass.getMethod("setTransactionApplicationName", String.class);
-			setTransactionApplicationName.invoke(FRAPIInstance, "CommandBox CLI");
-
-			Method setDescription = FRTrans.getClass().getMethod("setDescription", String.class);
-			setDescription.invoke(FRTrans, "Java Code from start of JVM to CF code running");
-
-		} catch (Throwable e) {
-			if (debug) {
-				printStream.println(e.getMessage());
-				// throw new IOException( e );
-			}
-
-		}
-
 		System.setProperty("cfml.cli.arguments",
 				arrayToList(cliArguments.toArray(new String[cliArguments.size()]), " "));
 		System.setProperty("cfml.cli.argument.list",
@@ -280,201 +290,226 @@ public class LoaderCLIMain {
 			printStream.println("cfml.cli.arguments: " + Arrays.toString(cliArguments.toArray()));
 			printStream.println("cfml.cli.argument.array: " + jsonArray.toJSONString());
 		}
+	}
 
-		URLClassLoader cl = getClassLoader();
+	/**
+	 * Include the bootstrap, which runs the shell or the command in the
+	 * cfml.cli.argument* system properties.
+	 */
+	static void evalBootstrap(ScriptEngine engine, String webroot, String bootstrap, PrintStream printStream)
+			throws ScriptException {
+		if (debug) {
+			printStream.println("Webroot: " + webroot);
+			printStream.println("Bootstrap: " + bootstrap);
+		}
 
-		try {
+		String CFML = "loader = createObject( 'java', 'cliloader.LoaderCLIMain' ); \n"
+				+ "if( !isNull( loader.FRTrans ) ) { loader.FRTrans.close(); } \n"
+				+ "\n"
+				+ " include '" + bootstrap.replace("'", "''") + "'; \n";
 
-			// This is a fix for Windows machine to avoid very slow access to the network
-			// adapter's mac address during UUID creation in Felix startup:
-			// https://www.mail-archive.com/users@felix.apache.org/msg18083.html
-			Optional.ofNullable(Security.getProvider("SunMSCAPI")).ifPresent(p -> {
-				Security.removeProvider(p.getName());
-				Security.insertProviderAt(p, 1);
-			});
-
-			// The "webroot" is the drive root where CommandBox's home lives
-			String webroot = Paths.get(uri).toAbsolutePath().getRoot().toString();
-
-			// Escape backslash in webroot since replace uses a regular expression
-			// The bootstrap is the first .cfm file we will cfinclude from the "webroot"
-			String bootstrap = "/"
-					+ Paths.get(uri).toAbsolutePath().toString().replaceFirst(webroot.replace("\\", "\\\\"), "");
-
-			// contextroot sets lucee's "webroot" inside the scripting engine to be our
-			// drive root
-			System.setProperty("lucee.cli.contextRoot", webroot);
-			// These next two are the Lucee web context and server context homes
-			System.setProperty("lucee.web.dir", getLuceeCLIConfigWebDir().getAbsolutePath());
-			System.setProperty("lucee.base.dir", getLuceeCLIConfigServerDir().getAbsolutePath());
-			// A couple tweaks to make Felix faster
-			System.setProperty("felix.cache.locking", "false");
-			System.setProperty("org.osgi.framework.storage.clean", "none");
-			// System.setProperty( "felix.log.level", System.getProperty( "felix.log.level",
-			// System.getenv().getOrDefault("FELIX_LOG_LEVEL", "0" ) ) );
-
-			// Load up JSR-223!
-			ScriptEngineManager engineManager = new ScriptEngineManager(cl);
-			ScriptEngine engine = engineManager.getEngineByName("CFML");
+		if (debug) {
+			printStream.println("");
+			printStream.println(CFML);
+			printStream.println("");
+		}
 
-			if (debug) {
-				printStream.println("Webroot: " + webroot);
-				printStream.println("Bootstrap: " + bootstrap);
-			}
+		try {
 
-			String CFML = "loader = createObject( 'java', 'cliloader.LoaderCLIMain' ); \n"
-					+ "if( !isNull( loader.FRTrans ) ) { loader.FRTrans.close(); } \n"
-					+ "\n"
-					+ " include '" + bootstrap.replace("'", "''") + "'; \n";
+			// Kick off the box bootstrap
+			engine.eval(CFML);
 
-			if (debug) {
-				printStream.println("");
-				printStream.println(CFML);
-				printStream.println("");
+		} catch (ScriptException e) {
+			if (e.getCause() != null && e.getCause().getClass().getName() == "lucee.runtime.exp.Abort") {
+				// Just a CFAbort, nothing to do here
+			} else {
+				throw (e);
 			}
+		}
+	}
 
-			try {
-
-				// Kick off the box bootstrap
-				engine.eval(CFML);
+	/**
+	 * @return The exit code the shell set for the last command
+	 */
+	static int readExitCode(PrintStream printStream) {
+		if (debug) {
+			printStream.println("cfml.cli.exitCode: " + Integer.parseInt(System.getProperty("cfml.cli.exitCode", "0")));
+		}
+		return Integer.parseInt(System.getProperty("cfml.cli.exitCode", "0"));
+	}
 
-			} catch (javax.script.ScriptException e) {
-				if (e.getCause() != null && e.getCause().getClass().getName() == "lucee.runtime.exp.Abort") {
-					// Just a CFAbort, nothing to do here
-				} else {
-					throw (e);
-				}
+	/**
+	 * Create the JSR-223 CFML engine on a background thread. The system properties
+	 * Lucee reads while starting up are set before the thread starts.
+	 *
+	 * @param cl      The class loader with the engine's jars
+	 * @param webroot The drive root to use as Lucee's web root
+	 * @return The task producing the engine
+	 */
+	static FutureTask<ScriptEngine> startEngine(final URLClassLoader cl, String webroot) {
+		// This is a fix for Windows machine to avoid very slow access to the network
+		// adapter's mac address during UUID creation in Felix startup:
+		// https://www.mail-archive.com/users@felix.apache.org/msg18083.html
+		Optional.ofNullable(Security.getProvider("SunMSCAPI")).ifPresent(p -> {
+			Security.removeProvider(p.getName());
+			Security.insertProviderAt(p, 1);
+		});
+
+		// contextroot sets lucee's "webroot" inside the scripting engine to be our
+		// drive root
+		System.setProperty("lucee.cli.contextRoot", webroot);
+		// These next two are the Lucee web context and server context homes
+		System.setProperty("lucee.web.dir", getLuceeCLIConfigWebDir().getAbsolutePath());
+		System.setProperty("lucee.base.dir", getLuceeCLIConfigServerDir().getAbsolutePath());
+		// A couple tweaks to make Felix faster
+		System.setProperty("felix.cache.locking", "false");
+		System.setProperty("org.osgi.framework.storage.clean", "none");
+		// System.setProperty( "felix.log.level", System.getProperty( "felix.log.level",
+		// System.getenv().getOrDefault("FELIX_LOG_LEVEL", "0" ) ) );
+
+		FutureTask<ScriptEngine> engineTask = new FutureTask<ScriptEngine>(new Callable<ScriptEngine>() {
+			@Override
+			public ScriptEngine call() {
+				// Load up JSR-223!
+				ScriptEngineManager engineManager = new ScriptEngineManager(cl);
+				ScriptEngine engine = engineManager.getEngineByName("CFML");
+				StartupTimeline.mark("loader.engine");
+				return engine;
 			}
+		});
+		Thread engineThread = new Thread(engineTask, "CommandBox CFML engine startup");
+		engineThread.setDaemon(true);
+		engineThread.start();
+		return engineTask;
+	}
 
-		} catch (Exception e) {
-			exitCode = 1;
-			e.printStackTrace();
-			if (e.getCause() != null) {
-				printStream.println("Cause:");
-				e.getCause().printStackTrace();
+	/**
+	 * Wait for the engine started by {@link #startEngine(URLClassLoader, String)}.
+	 *
+	 * @param engineTask The task producing the engine
+	 * @return The CFML engine
+	 * @throws Exception whatever the engine threw while starting
+	 */
+	static ScriptEngine awaitEngine(FutureTask<ScriptEngine> engineTask) throws Exception {
+		try {
+			return engineTask.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
 			}
+			throw e;
 		}
+	}
 
-		if (debug) {
-			printStream.println("cfml.cli.exitCode: " + Integer.parseInt(System.getProperty("cfml.cli.exitCode", "0")));
+	/**
+	 * Close the class loader of the libraries. The next call to getClassLoader
+	 * creates a new one.
+	 */
+	static synchronized void releaseClassLoader() throws IOException {
+		if (_classLoader != null) {
+			_classLoader.close();
+			_classLoader = null;
 		}
-		exitCode = Integer.parseInt(System.getProperty("cfml.cli.exitCode", "0"));
+	}
 
-		cl.close();
-		printStream.flush();
+	static boolean isInitialized() {
+		return initialized;
+	}
+
+	/**
+	 * Whether the loader runs inside a host JVM, as in {@link CommandBoxRuntime}.
+	 * Embedded, a failure to set up CommandBox throws instead of ending the JVM.
+	 */
+	static void setEmbedded(boolean isEmbedded) {
+		embedded = isEmbedded;
+	}
+
+	/**
+	 * Give up setting up CommandBox once the reason has been printed. From the
+	 * command line this exits with code 1, pausing first when asked so the
+	 * reason stays readable in a console that closes on exit. Embedded, it throws
+	 * an UncheckedIOException wrapping an IOException with the reason.
+	 *
+	 * @param reason What went wrong
+	 * @param pause  Wait five seconds before exiting
+	 */
+	static void abort(String reason, boolean pause) {
+		if (embedded) {
+			throw new UncheckedIOException(new IOException(reason));
+		}
+		if (pause) {
+			try {
+				Thread.sleep(5000);
+			} catch (Throwable t) {
+			}
+		}
+		System.exit(1);
 	}
 
 	public static URLClassLoader getClassLoader() {
 		if (_classLoader == null) {
 			File libDir = getLibDir();
 			File[] children = libDir.listFiles(new ExtFilter(".jar"));
-			ArrayList<File> jars = new ArrayList<File>();
 			if (children.length < 2) {
 				libDir = new File(libDir, "lib");
 				setLibDir(libDir);
 				children = libDir.listFiles(new ExtFilter(".jar"));
 			}
 			if (children == null || children.length < 2) {
-				log.error("Could not find libraries");
-				System.exit(1);
+				LoaderLog.error("Could not find libraries");
+				abort("Could not find libraries in " + libDir, false);
 			}
 
-			for (File jar : children) {
-				jars.add(jar);
-				if (!jar.getName().contains("runwar")) {
+			if (LoaderLog.isDebugEnabled()) {
+				LoaderLog.debug("Loading Jars");
+				for (File jar : children) {
+					LoaderLog.debug("- " + jar);
 				}
 			}
-			URL[] urls = new URL[jars.size()];
-			log.debug("Loading Jars");
-			for (int i = 0; i < jars.size(); i++) {
-				try {
-					urls[i] = jars.get(i).toURI().toURL();
-					log.debug("- " + urls[i]);
-				} catch (MalformedURLException e) {
-					e.printStackTrace();
-				}
+			// Without a home there's nowhere to keep the index, so it is built in memory
+			File indexFile = getCLI_HOME() == null ? null
+					: new File(new File(getCLI_HOME(), MANIFEST_DIR), LIB_INDEX_FILE);
+			URLClassLoader libsLoader;
+			try {
+				libsLoader = new JarIndexClassLoader(children, classLoader, indexFile);
+			} catch (MalformedURLException e) {
+				e.printStackTrace();
+				LoaderLog.error("Could not load libraries");
+				abort("Could not load libraries: " + e.getMessage(), false);
+				return null;
 			}
-			URLClassLoader libsLoader = new URLClassLoader(urls, classLoader);
 			_classLoader = libsLoader;
 		}
 		return _classLoader;
 	}
 
-	private static File getCLI_HOME() {
+	static File getCLI_HOME() {
 		return CLI_HOME;
 	}
 
-	private static File getCLI_HOME(ArrayList<String> cliArguments,
-			Properties props, String[] arguments, Map<String, String> config) {
-		File cli_home = null;
+	/**
+	 * Work out the home directory as {@link LoaderOptions#resolveHome} does,
+	 * falling back to ~/.{name}
+	 *
+	 * @param options     The parsed command line
+	 * @param props       The built in properties
+	 * @param jarDirProps The properties next to the binary, or null to read them
+	 */
+	private static File getCLI_HOME(LoaderOptions options, Properties props, Properties jarDirProps) {
+		File cli_home = getCLI_HOME();
 		String name = getName();
-		String home = name + "_home";
-		if (getCLI_HOME() == null) {
-			Map<String, String> env = System.getenv();
-			log.debug("home: checking for command line argument " + home);
-			if (mapGetNoCase(config, home) != null) {
-				String homeArg = mapGetNoCase(config, home);
-				if (homeArg.length() == 0) {
-					System.err.println("The home directory cannot be empty");
-					System.exit(1);
-				}
-				cli_home = new File(homeArg);
-				arguments = removeElement(arguments, "-" + home);
-				listRemoveContaining(cliArguments, "-" + home);
+		if (cli_home == null) {
+			if (options.getHome() != null && options.getHome().length() == 0) {
+				System.err.println("The home directory cannot be empty");
+				abort("The home directory cannot be empty", false);
 			}
-			if (cli_home == null) {
-				File cliPropFile = new File(getJarDir(), getName()
-						.toLowerCase() + ".properties");
-				if (!cliPropFile.isFile()) {
-					cliPropFile = new File(getJarDir(), "cli.properties");
-				}
-				if (cliPropFile.isFile()) {
-					Properties userProps = new Properties();
-					InputStream fi;
-					try {
-						log.debug("checking for home in properties from "
-								+ cliPropFile.getCanonicalPath());
-						fi = new BOMInputStream(new FileInputStream(cliPropFile), false);
-						userProps.load(fi);
-						fi.close();
-						if (mapGetNoCase(userProps, "cli.home") != null) {
-							cli_home = new File(mapGetNoCase(userProps, "cli.home"));
-						} else if (mapGetNoCase(userProps, home) != null) {
-							cli_home = new File(mapGetNoCase(userProps, home));
-						}
-						// If relative path was found in commandbox.properties, make it relative to the
-						// location of the properties file
-						if (cli_home != null && !cli_home.isAbsolute()) {
-							cli_home = new File(getJarDir(), cli_home.toString());
-						}
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
-			}
-			if (cli_home == null) {
-				log.debug("home: checking for environment variable");
-				if (mapGetNoCase(env, home) != null) {
-					cli_home = new File(mapGetNoCase(env, home));
-				}
+			if (jarDirProps == null) {
+				jarDirProps = loadJarDirProperties();
 			}
+			cli_home = options.resolveHome(name, jarDirProps, new File(getJarDir()), System.getenv(),
+					System.getProperties(), props);
 			if (cli_home == null) {
-				log.debug("home: checking for system property");
-				if (mapGetNoCase(System.getProperties(), home) != null) {
-					cli_home = new File(mapGetNoCase(System.getProperties(),
-							home));
-				}
-			}
-			if (cli_home == null) {
-				log.debug("home: checking cli.properties");
-				if (mapGetNoCase(props, home) != null) {
-					cli_home = new File(mapGetNoCase(props, home));
-				} else if (mapGetNoCase(props, "cli.home") != null) {
-					cli_home = new File(mapGetNoCase(props, "cli.home"));
-				}
-			}
-			if (cli_home == null) {
-				log.debug("home: using default");
+				LoaderLog.debug("home: using default");
 				String userHome = System.getProperty("user.home");
 				if (userHome != null) {
 					cli_home = new File(userHome + "/." + name + "/");
@@ -486,7 +521,7 @@ public class LoaderCLIMain {
 			}
 		}
 		setCLI_HOME(cli_home);
-		log.debug("home: " + cli_home.getAbsolutePath());
+		LoaderLog.debug("home: " + cli_home.getAbsolutePath());
 		return cli_home;
 	}
 
@@ -513,7 +548,7 @@ public class LoaderCLIMain {
 		return luceeCLIConfigWebDirectory;
 	}
 
-	private static String getName() {
+	static String getName() {
 		return name;
 	}
 
@@ -592,141 +627,159 @@ public class LoaderCLIMain {
 
 		disableAccessWarnings();
 		Util.ensureJavaVersion();
+		Integer daemonExitCode = runThroughDaemon(arguments);
+		if (daemonExitCode != null) {
+			mainDone = true;
+			LoaderLog.close();
+			System.exit(daemonExitCode);
+		}
 		execute(initialize(arguments));
+		if (daemonHome != null) {
+			// Only now, so the daemon doesn't extract the libraries alongside this JVM
+			BoxDaemon.startInBackground(daemonHome, getName());
+		}
 		mainDone = true;
+		StartupTimeline.mark("loader.exit");
+		StartupTimeline.write();
+		LoaderLog.close();
 		System.exit(exitCode);
 	}
 
+	/**
+	 * With -clidaemon, send the command to the resident daemon. If none is
+	 * running, note the home so main starts one for the next command once this
+	 * one has finished.
+	 *
+	 * @return The command's exit code, or null to run it in this JVM
+	 */
+	private static Integer runThroughDaemon(String[] arguments) {
+		Properties props = new Properties();
+		try {
+			props.load(ClassLoader.getSystemResourceAsStream("cliloader/cli.properties"));
+		} catch (Exception e) {
+			return null;
+		}
+		String name = props.getProperty("name") != null ? props.getProperty("name") : "lucee";
+		LoaderOptions options = LoaderOptions.parse(Arrays.asList(arguments), name);
+		// The interactive shell needs the terminal, so only commands go to the daemon
+		if (!options.isDaemon() || options.getArguments().isEmpty()) {
+			return null;
+		}
+		setName(name);
+		if (options.isDebug()) {
+			debug = true;
+			LoaderLog.setDebug(true);
+		}
+		File home = getCLI_HOME(options, props, null);
+		String cwd = options.getWorkingDir() != null && options.getWorkingDir().length() > 0
+				? options.getWorkingDir()
+				: getCurrentDir();
+		Integer exitCode = BoxDaemon.runRemotely(home, options.getArguments(), cwd, System.in, System.out,
+				System.err);
+		if (exitCode == null) {
+			daemonHome = home;
+		}
+		return exitCode;
+	}
+
 	@SuppressWarnings("static-access")
 	public static ArrayList<String> initialize(String[] arguments) throws IOException {
 
 		System.setProperty("apple.awt.UIElement", "true");
-		ArrayList<String> cliArguments = new ArrayList<String>(
-				Arrays.asList(arguments));
 		File cli_home;
 		Boolean updateLibs = false;
 
-		Properties props = new Properties(), userProps = new Properties();
-		if (listContains(cliArguments, "-clidebug")) {
-			debug = true;
-			listRemoveContaining(cliArguments, "-clidebug");
-			arguments = removeElement(arguments, "-clidebug");
-		}
-
-		if (debug) {
-			log.debug("CLI Java Version: "
-					+ System.getProperty("java.vm.version", System.getProperty("java.version", "Unknown")));
-			log.debug("CLI Java Home: " + System.getProperty("java.home", "Unknown"));
-			log.debug("CLI Java Vendor: " + System.getProperty("java.vendor", "Unknown"));
-			log.debug("box binary version: " + Util.getResourceAsString(CFML_VERSION_PATH));
-			log.debug("box binary loader version: " + Util.getResourceAsString(VERSION_PROPERTIES_PATH).split("=")[1]);
-		}
-
-		System.setProperty("cfml.cli.debug", debug.toString());
+		Properties props = new Properties();
 		try {
 			props.load(ClassLoader.getSystemResourceAsStream("cliloader/cli.properties"));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		log.debug("initial arguments:" + Arrays.toString(arguments));
-		Map<String, String> config = toMap(arguments);
 		String name = props.getProperty("name") != null ? props
 				.getProperty("name") : "lucee";
 		setName(name);
 
-		// merge any user defined properties
-		File cliPropFile = new File(getJarDir(), getName().toLowerCase() + ".properties");
-
-		log.debug("Checking for properties file " + cliPropFile.getCanonicalPath());
+		// Sort the loader's own flags from the shell's arguments in one pass
+		LoaderOptions options = LoaderOptions.parse(Arrays.asList(arguments), name);
+		ArrayList<String> cliArguments = new ArrayList<String>(options.getArguments());
+		if (options.isDebug()) {
+			debug = true;
+			LoaderLog.setDebug(true);
+		}
+		// -clilog also writes everything, debug included, to a file once the home is known
+		if (options.isLog()) {
+			LoaderLog.enableFile();
+			if (options.getLogTarget() != null) {
+				LoaderLog.setFile(new File(options.getLogTarget()));
+			}
+		}
 
-		if (!cliPropFile.isFile()) {
-			log.debug(cliPropFile.getCanonicalPath() + " NOT FOUND");
-			cliPropFile = new File(getJarDir(), "cli.properties");
-			log.debug("Checking for properties file " + cliPropFile.getCanonicalPath());
+		// -clitimeline writes the startup timeline to stderr, -clitimeline=/path/to.json to a file
+		if (options.isTimeline()) {
+			StartupTimeline.enable(options.getTimelineTarget());
+		} else if (System.getProperty(StartupTimeline.PROPERTY) != null) {
+			StartupTimeline.enable(System.getProperty(StartupTimeline.PROPERTY));
 		}
-		if (cliPropFile.isFile()) {
-			log.debug("merging properties from " + cliPropFile.getCanonicalPath());
-			InputStream fi = new BOMInputStream(new FileInputStream(cliPropFile), false);
-			userProps.load(fi);
-			fi.close();
-			props = mergeProperties(props, userProps);
-		} else {
-			log.debug(cliPropFile.getCanonicalPath() + " NOT FOUND");
+		StartupTimeline.mark("loader.start");
+
+		if (LoaderLog.isDebugEnabled()) {
+			LoaderLog.debug("CLI Java Version: "
+					+ System.getProperty("java.vm.version", System.getProperty("java.version", "Unknown")));
+			LoaderLog.debug("CLI Java Home: " + System.getProperty("java.home", "Unknown"));
+			LoaderLog.debug("CLI Java Vendor: " + System.getProperty("java.vendor", "Unknown"));
+			LoaderLog.debug("box binary version: " + Util.getResourceAsString(CFML_VERSION_PATH));
+			LoaderLog.debug("box binary loader version: " + Util.getResourceAsString(VERSION_PROPERTIES_PATH).split("=")[1]);
 		}
 
-		log.debug("cfml.cli.name: " + name);
-		setShellPath(props.getProperty("shell") != null ? props.getProperty("shell") : "/cfml/cli/shell.cfm");
+		System.setProperty("cfml.cli.debug", debug.toString());
+		LoaderLog.debug(() -> "initial arguments:" + Arrays.toString(arguments));
+
+		// User defined properties next to the binary. Read once; they are also where
+		// the home may be configured.
+		Properties jarDirProps = loadJarDirProperties();
+		LoaderLog.debug("cfml.cli.name: " + name);
+		String shell = jarDirProps.getProperty("shell", props.getProperty("shell"));
+		setShellPath(shell != null ? shell : "/cfml/cli/shell.cfm");
+		StartupTimeline.mark("loader.properties");
 
-		cli_home = getCLI_HOME(cliArguments, props, arguments, config);
-		arguments = removeElement(arguments, "-" + getName() + "_home");
+		cli_home = getCLI_HOME(options, props, jarDirProps);
+		// Ignored unless -clilog was passed without a path
+		LoaderLog.setFile(new File(new File(cli_home, "logs"), LoaderLog.FILE_NAME));
 
-		log.debug("initial cfml.cli.home: " + cli_home);
+		LoaderLog.debug("initial cfml.cli.home: " + cli_home);
 		if (!cli_home.exists()) {
-			log.info("Configuring " + name + " home: " + cli_home + " (change with -" + name + "_home=/path/to/dir)");
+			LoaderLog.info("Configuring " + name + " home: " + cli_home + " (change with -" + name + "_home=/path/to/dir)");
 			cli_home.mkdir();
 		}
+		StartupTimeline.mark("loader.home");
 
+		// Merge everything once: built in defaults, then next to the binary, then the home
+		Properties homeProps = new Properties();
 		if (new File(cli_home, "cli.properties").isFile()) {
-			InputStream fi = new BOMInputStream(new FileInputStream(new File(cli_home, "cli.properties")), false);
-			userProps.load(fi);
-			fi.close();
-			props = mergeProperties(props, userProps);
-		} else {
-			// userProps.put("cfml.cli.home", cli_home.getAbsolutePath());
-			// FileOutputStream fo = new FileOutputStream(new
-			// File(cli_home,"cli.properties"));
-			// userProps.store(fo,null);
+			homeProps = loadProperties(new File(cli_home, "cli.properties"));
 		}
+		props = mergeProperties(props, jarDirProps, homeProps);
 
 		// update/overwrite libs
-		if (listContains(cliArguments, "-cliupdate")) {
-			log.info("updating " + name + " home");
+		if (options.isUpdate()) {
+			LoaderLog.info("updating " + name + " home");
 			updateLibs = true;
-			listRemoveContaining(cliArguments, "-cliupdate");
-			arguments = removeElement(arguments, "-cliupdate");
 		}
 
 		setLibDir(new File(cli_home, "lib").getCanonicalFile());
 
-		if (listContains(cliArguments, "-clishellpath")) {
-			int shellpathIdx = listIndexOf(cliArguments, "-clishellpath");
-			String shellpath = cliArguments.get(shellpathIdx);
-			if (shellpath.indexOf('=') == -1) {
-				setShellPath(cliArguments.get(shellpathIdx + 1));
-				cliArguments.remove(shellpathIdx + 1);
-				cliArguments.remove(shellpathIdx);
-			} else {
-				setShellPath(shellpath.split("=")[1]);
-				cliArguments.remove(shellpathIdx);
-			}
-			arguments = removeElement(arguments, "-clishellpath");
+		if (options.getShellPath() != null) {
+			setShellPath(options.getShellPath());
 		}
 		props.setProperty("cfml.cli.shell", getShellPath());
 		String cliworkingdirFinal = getCurrentDir();
 
-		if (listContains(cliArguments, "-cliworkingdir")) {
-			log.debug("overriding user.dir from -cliworkingdir");
-			int cliworkingdirIdx = listIndexOf(cliArguments, "-cliworkingdir");
-			String cliworkingdir = cliArguments.get(cliworkingdirIdx);
-
-			if (cliworkingdir.indexOf('=') == -1) {
-				if (cliArguments.size() > cliworkingdirIdx + 1) {
-					cliworkingdirFinal = cliArguments.get(cliworkingdirIdx + 1);
-					cliArguments.remove(cliworkingdirIdx + 1);
-				}
-				cliArguments.remove(cliworkingdirIdx);
-			} else if (cliworkingdir.indexOf('=') > -1) {
-				String[] keyVal = cliworkingdir.split("=");
-				if (keyVal.length > 1) {
-					cliworkingdirFinal = keyVal[1];
-				}
-				cliArguments.remove(cliworkingdirIdx);
-			}
-
-			// arguments = removeElement( arguments, "-cliworkingdir" );
+		if (options.getWorkingDir() != null && options.getWorkingDir().length() > 0) {
+			LoaderLog.debug("overriding user.dir from -cliworkingdir");
+			cliworkingdirFinal = options.getWorkingDir();
 		}
 
-		log.debug("Working Dir set to " + cliworkingdirFinal);
+		LoaderLog.debug("Working Dir set to " + cliworkingdirFinal);
 		props.setProperty("cfml.cli.pwd", cliworkingdirFinal);
 
 		File libDir = getLibDir();
@@ -743,30 +796,34 @@ public class LoaderCLIMain {
 
 		// clean out any leftover pack files (an issue on windows)
 		Util.cleanUpUnpacked(libDir);
+		// and old Felix caches a previous run didn't finish deleting before it exited
+		Util.deleteLeftoversInBackground(cfmlFelixCacheDir);
 
 		if (libDir.exists()) {
 			File versionFile = new File(cfmlDir, ".version");
 			if (!versionFileMatches(versionFile, CFML_VERSION_PATH)) {
 				String autoUpdate = props.getProperty("cfml.cli.autoupdate");
 				if (autoUpdate != null && Boolean.parseBoolean(autoUpdate)) {
-					log.warn("\n*updating installed jars");
+					LoaderLog.warn("\n*updating installed jars");
 					updateLibs = true;
 					versionFile.delete();
 				} else {
-					log.warn("run '" + name + " -update' to install new version");
+					LoaderLog.warn("run '" + name + " -update' to install new version");
 				}
 			}
 		}
 
+		StartupTimeline.mark("loader.versionCheck");
+
 		File newLibDir = new File(cli_home, "lib-new").getCanonicalFile();
 		// if lib-new exists and has files
 		if (newLibDir.exists() && newLibDir.isDirectory() && newLibDir.listFiles(new ExtFilter(".jar")).length > 0) {
-			log.info("Upgrading libraries...");
+			LoaderLog.info("Upgrading libraries...");
 
 			// OSGI can be grumpy on upgrade with competing bundles. Start fresh
 			if (cfmlFelixCacheDir.exists()) {
-				log.info("Cleaning old Felix Cache...");
-				Util.deleteDirectory(cfmlFelixCacheDir);
+				LoaderLog.info("Cleaning old Felix Cache...");
+				cleanFelixCache(cfmlFelixCacheDir);
 			}
 
 			// Try to delete the Runwar jar first since it's the most likely to be locked.
@@ -789,85 +846,115 @@ public class LoaderCLIMain {
 					e.printStackTrace();
 					System.err.println(
 							"Please close all open consoles and stop all running servers before trying again.");
-					try {
-						Thread.sleep(5000);
-					} catch (Throwable t) {
-					}
-					System.exit(1);
+					abort("Could not move the jar [" + thisLib.getAbsolutePath() + "] to ["
+							+ libDir.getAbsolutePath() + "]: " + e.getMessage(), true);
 				}
 			}
 			newLibDir.delete();
-			log.info("");
-			log.info("Libraries upgraded");
+			// The manifest no longer describes what is in the lib folder
+			getManifestFile(cli_home, LIB_ZIP_PATH).delete();
+			LoaderLog.info("");
+			LoaderLog.info("Libraries upgraded");
 		}
 
 		if (!libDir.exists()
 				|| libDir.listFiles(new ExtFilter(".jar")).length < 2
 				|| updateLibs) {
-			log.info("Library path: " + libDir);
-			log.info("Initializing libraries -- this will only happen once, and takes a few seconds...");
-
-			// OSGI can be grumpy on upgrade with competing bundles. Start fresh
-			if (cfmlBundlesDir.exists()) {
-				// log.info( "Cleaning old OSGI Bundles..." );
-				// Util.deleteDirectory( cfmlBundlesDir );
-			}
-			// OSGI can be grumpy on upgrade with competing bundles. Start fresh
-			if (cfmlFelixCacheDir.exists()) {
-				log.info("Cleaning old Felix Cache...");
-				Util.deleteDirectory(cfmlFelixCacheDir);
-			}
-
-			// Try to delete the Runwar jar first since it's the most likely to be locked.
-			// If it fails, this method will just abort before we get any farther into
-			// deleting stuff.
-			Util.checkIfJarsLocked(libDir, "runwar");
-			// Ok, try deleting for real. If any of these jars fail to delete, we'll still
-			// holler at the user and abort the upgrade
-			Util.removePreviousLibs(libDir);
+			LoaderLog.info("Library path: " + libDir);
+			LoaderLog.info("Initializing libraries -- this will only happen once, and takes a few seconds...");
+
+			File libManifest = getManifestFile(cli_home, LIB_ZIP_PATH);
+			if (libDir.exists() && libDir.listFiles(new ExtFilter(".jar")).length >= 2 && libManifest.isFile()) {
+				// We know what the last extraction wrote, so only replace the jars that
+				// changed and remove the ones that are no longer shipped. Those are all
+				// deleted before anything is written, so a locked jar aborts the upgrade
+				// the same way checkIfJarsLocked() does below.
+				LoaderLog.debug("Updating libraries in place using " + libManifest);
+				List<String> changedLibs = Util.unzipInteralZip(classLoader, LIB_ZIP_PATH, libDir, libManifest, true,
+						debug);
+
+				// Felix only needs to start fresh if one of the bundles it cached was replaced
+				boolean bundleChanged = false;
+				for (String changedLib : changedLibs) {
+					if (changedLib.toLowerCase().endsWith(".jar")) {
+						bundleChanged = true;
+						break;
+					}
+				}
+				if (bundleChanged && cfmlFelixCacheDir.exists()) {
+					LoaderLog.info("Cleaning old Felix Cache...");
+					cleanFelixCache(cfmlFelixCacheDir);
+				}
+			} else {
+				// OSGI can be grumpy on upgrade with competing bundles. Start fresh
+				if (cfmlBundlesDir.exists()) {
+					// LoaderLog.info( "Cleaning old OSGI Bundles..." );
+					// Util.deleteDirectory( cfmlBundlesDir );
+				}
+				// OSGI can be grumpy on upgrade with competing bundles. Start fresh
+				if (cfmlFelixCacheDir.exists()) {
+					LoaderLog.info("Cleaning old Felix Cache...");
+					cleanFelixCache(cfmlFelixCacheDir);
+				}
 
-			Util.unzipInteralZip(classLoader, LIB_ZIP_PATH, libDir, debug);
+				// Try to delete the Runwar jar first since it's the most likely to be locked.
+				// If it fails, this method will just abort before we get any farther into
+				// deleting stuff.
+				Util.checkIfJarsLocked(libDir, "runwar");
+				// Ok, try deleting for real. If any of these jars fail to delete, we'll still
+				// holler at the user and abort the upgrade
+				Util.removePreviousLibs(libDir);
 
-			// Wipe out existing /cfml/system folder to remove any deleted files
-			if (cfmlSystemDir.exists()) {
-				Util.deleteDirectory(cfmlSystemDir);
+				Util.unzipInteralZip(classLoader, LIB_ZIP_PATH, libDir, libManifest, false, debug);
 			}
 
-			Util.unzipInteralZip(classLoader, CFML_ZIP_PATH, cfmlDir, debug);
+			extractCFML(cli_home, cfmlDir);
 
 			Util.unzipInteralZip(classLoader, ENGINECONF_ZIP_PATH, new File(
-					cli_home.getPath() + "/engine"), debug);
+					cli_home.getPath() + "/engine"), getManifestFile(cli_home, ENGINECONF_ZIP_PATH), false, debug);
 			Util.copyInternalFile(classLoader, VERSION_PROPERTIES_PATH,
 					new File(libDir, "version.properties"));
-			log.info("");
-			log.info("Libraries initialized");
-			if (updateLibs && arguments.length == 0) {
-				log.info("updated " + cli_home + "!");
-				// log.info("updated! ctrl-c now or wait a few seconds for exit..");
+			LoaderLog.info("");
+			LoaderLog.info("Libraries initialized");
+			if (updateLibs && cliArguments.isEmpty()) {
+				LoaderLog.info("updated " + cli_home + "!");
+				// LoaderLog.info("updated! ctrl-c now or wait a few seconds for exit..");
 				// System.exit(0);
 			}
 			Util.cleanUpUnpacked(libDir);
+
+			// The class data sharing archive was dumped from the old jars. Throw it away
+			// so the next launch records a fresh one. The launcher says where it put the
+			// archive, which is CLI_HOME/cds unless BOX_CDS_ARCHIVE moved it.
+			String cdsArchive = System.getProperty(CDS_ARCHIVE_PROPERTY);
+			if (cdsArchive != null && !cdsArchive.trim().isEmpty()) {
+				File archive = new File(cdsArchive.trim());
+				if (archive.exists()) {
+					LoaderLog.debug("Removing stale class data sharing archive " + archive);
+					archive.delete();
+				}
+			}
+			File cdsDir = new File(cli_home, CDS_DIR);
+			if (cdsDir.exists()) {
+				LoaderLog.debug("Removing stale class data sharing archive from " + cdsDir);
+				Util.deleteDirectory(cdsDir);
+			}
 		}
 
+		StartupTimeline.mark("loader.libraries");
+
 		// check cfml version
 		if (cfmlDir.exists()) {
 			File versionFile = new File(cfmlDir, ".version");
 			if (!versionFileMatches(versionFile, CFML_VERSION_PATH)) {
 				String autoUpdate = props.getProperty("cfml.cli.autoupdate");
 				if (autoUpdate != null && Boolean.parseBoolean(autoUpdate)) {
-					log.warn("\n*updating installed CFML");
+					LoaderLog.warn("\n*updating installed CFML");
 					versionFile.delete();
 
-					// Wipe out existing /cfml/system folder to remove any deleted files
-					if (cfmlSystemDir.exists()) {
-						// This also inherently clears the metadata cache since it was inside this
-						// folder
-						Util.deleteDirectory(cfmlSystemDir);
-					}
-
-					Util.unzipInteralZip(classLoader, CFML_ZIP_PATH, cfmlDir, debug);
+					extractCFML(cli_home, cfmlDir);
 				} else {
-					log.warn("run '" + name + " -update' to install new CFML");
+					LoaderLog.warn("run '" + name + " -update' to install new CFML");
 				}
 			}
 		}
@@ -878,18 +965,18 @@ public class LoaderCLIMain {
 		// BOX_JAVA_PROPS="foo=bar;brad=wood"
 		Map<String, String> env = System.getenv();
 		if (mapGetNoCase(env, "BOX_JAVA_PROPS") != null) {
-			log.debug("Environment Variable BOX_JAVA_PROPS found.");
+			LoaderLog.debug("Environment Variable BOX_JAVA_PROPS found.");
 			String BOX_JAVA_PROPS = mapGetNoCase(env, "BOX_JAVA_PROPS");
 			if (BOX_JAVA_PROPS.length() > 0) {
-				log.debug("Environment Variable BOX_JAVA_PROPS: " + BOX_JAVA_PROPS);
+				LoaderLog.debug("Environment Variable BOX_JAVA_PROPS: " + BOX_JAVA_PROPS);
 				String[] boxJavaProps = BOX_JAVA_PROPS.split(";");
 
 				for (String thisBoxJavaProp : boxJavaProps) {
 					if (thisBoxJavaProp.indexOf('=') != -1) {
 						System.setProperty(thisBoxJavaProp.split("=")[0], thisBoxJavaProp.split("=")[1]);
-						log.debug("Added BOX_JAVA_PROP to System Properties:" + thisBoxJavaProp);
+						LoaderLog.debug("Added BOX_JAVA_PROP to System Properties:" + thisBoxJavaProp);
 					} else {
-						log.debug("BOX_JAVA_PROP is malformed. Missing equals sign: " + thisBoxJavaProp.split("=")[0]
+						LoaderLog.debug("BOX_JAVA_PROP is malformed. Missing equals sign: " + thisBoxJavaProp.split("=")[0]
 								+ "=" + thisBoxJavaProp.split("=")[1]);
 					}
 				}
@@ -909,55 +996,143 @@ public class LoaderCLIMain {
 			String key = (String) name2;
 			String value = props.get(key).toString();
 			System.setProperty(key, value);
-			log.debug(key + ": " + value);
+			LoaderLog.debug(() -> key + ": " + value);
 		}
 
 		initialized = true;
+		StartupTimeline.mark("loader.initialized");
 		return cliArguments;
 	}
 
-	private static void removeInternalArguments(ArrayList<String> cliArguments) {
-		String name = getName();
-		String home = name + "_home";
-		listRemoveContaining(cliArguments, "-" + home);
-		listRemoveContaining(cliArguments, "-cliupdate");
-		listRemoveContaining(cliArguments, "-clidebug");
-		listRemoveContaining(cliArguments, "-cliworkingdir");
+	/**
+	 * Extract the CFML source of the shell. If a manifest of the last extraction
+	 * exists, only the changed files are written and files no longer shipped are
+	 * removed. Otherwise /cfml/system is wiped and extracted in full.
+	 */
+	private static void extractCFML(File cli_home, File cfmlDir) throws IOException {
+		File cfmlSystemDir = new File(cfmlDir, "system");
+		File cfmlManifest = getManifestFile(cli_home, CFML_ZIP_PATH);
+		if (cfmlSystemDir.exists() && cfmlManifest.isFile()) {
+			LoaderLog.debug("Updating CFML in place using " + cfmlManifest);
+			List<String> changedCFML = Util.unzipInteralZip(classLoader, CFML_ZIP_PATH, cfmlDir, cfmlManifest, true,
+					debug);
+			// Cached metadata may describe components that just changed
+			File metadataCacheDir = new File(cfmlSystemDir, "mdCache");
+			if (!changedCFML.isEmpty() && metadataCacheDir.exists()) {
+				Util.deleteDirectory(metadataCacheDir);
+			}
+		} else {
+			// Wipe out existing /cfml/system folder to remove any deleted files
+			if (cfmlSystemDir.exists()) {
+				// This also inherently clears the metadata cache since it was inside this
+				// folder
+				Util.deleteDirectory(cfmlSystemDir);
+			}
+
+			Util.unzipInteralZip(classLoader, CFML_ZIP_PATH, cfmlDir, cfmlManifest, false, debug);
+		}
+		invalidateCompiledClasses(cli_home);
 	}
 
-	private static String mapGetNoCase(Map<String, String> source,
-			String text) {
-		for (String str : source.keySet()) {
-			// check for "--" too
-			if (str.toLowerCase().startsWith(text.toLowerCase())
-					|| str.toLowerCase().startsWith('-' + text.toLowerCase())) {
-				return source.get(str);
+	/**
+	 * Extracted files keep their zip entry's timestamp so Lucee's compiled classes
+	 * stay valid when the same build is extracted again. A build with normalized
+	 * entry times would fool that check, so the classes are also thrown away
+	 * whenever the CFML version they were compiled for changes.
+	 */
+	private static void invalidateCompiledClasses(File cli_home) throws IOException {
+		String currentVersion = Util.getResourceAsString(CFML_VERSION_PATH).trim();
+		File marker = new File(new File(cli_home, MANIFEST_DIR), CFCLASSES_VERSION_FILE);
+		String compiledVersion = marker.isFile() ? Util.readFile(marker.getPath()).trim() : "";
+		if (currentVersion.equals(compiledVersion)) {
+			return;
+		}
+		File[] classDirs = new File[] { new File(cli_home, "engine/cfml/cli/cfml-web/cfclasses"),
+				new File(cli_home, "engine/cfml/cli/lucee-server/context/cfclasses") };
+		for (File classDir : classDirs) {
+			if (classDir.exists()) {
+				LoaderLog.debug("Removing classes compiled for CFML " + compiledVersion + " from " + classDir);
+				Util.deleteDirectory(classDir);
 			}
 		}
-		return null;
+		marker.getParentFile().mkdirs();
+		Files.write(marker.toPath(), currentVersion.getBytes(StandardCharsets.UTF_8));
 	}
 
-	private static String mapGetNoCase(Properties source, String text) {
-		for (Object name2 : source.keySet()) {
-			String str = (String) name2;
-			// check for "--" too
-			if (str.toLowerCase().startsWith(text.toLowerCase())
-					|| str.toLowerCase().startsWith('-' + text.toLowerCase())) {
-				return (String) source.get(str);
-			}
+	/**
+	 * Move the Felix cache aside and delete it in the background since Felix only
+	 * needs the folder to be gone, not deleted, before it starts.
+	 */
+	private static void cleanFelixCache(File cfmlFelixCacheDir) throws IOException {
+		try {
+			Util.deleteDirectoryInBackground(cfmlFelixCacheDir);
+		} catch (IOException e) {
+			LoaderLog.debug("Could not move the Felix cache aside, deleting it in place: " + e.getMessage());
+			Util.deleteDirectory(cfmlFelixCacheDir);
 		}
-		return null;
+	}
+
+	private static File getManifestFile(File cli_home, String zipPath) {
+		return new File(new File(cli_home, MANIFEST_DIR), zipPath + ".manifest");
+	}
+
+	private static void removeInternalArguments(ArrayList<String> cliArguments) {
+		List<String> shellArguments = LoaderOptions.parse(cliArguments, getName()).getArguments();
+		if (shellArguments.size() != cliArguments.size()) {
+			cliArguments.clear();
+			cliArguments.addAll(shellArguments);
+		}
+	}
+
+	private static String mapGetNoCase(Map<?, ?> source, String text) {
+		return LoaderOptions.getNoCase(source, text);
 	}
 
 	private static Properties mergeProperties(Properties source,
-			Properties override) {
-		Properties merged = new Properties();
-		for (Object prop : override.keySet()) {
-			log.debug("merging property " + prop.toString() + "=" + override.get(prop));
-		}
-		merged.putAll(source);
-		merged.putAll(override);
-		return merged;
+			Properties... overrides) {
+		if (LoaderLog.isDebugEnabled()) {
+			for (Properties override : overrides) {
+				for (Object prop : override.keySet()) {
+					LoaderLog.debug("merging property " + prop.toString() + "=" + override.get(prop));
+				}
+			}
+		}
+		return LoaderOptions.mergeProperties(source, overrides);
+	}
+
+	private static Properties loadProperties(File propertiesFile) throws IOException {
+		LoaderLog.debug(() -> "merging properties from " + propertiesFile.getCanonicalPath());
+		Properties loaded = new Properties();
+		InputStream fi = new BOMInputStream(new FileInputStream(propertiesFile), false);
+		try {
+			loaded.load(fi);
+		} finally {
+			fi.close();
+		}
+		return loaded;
+	}
+
+	/**
+	 * Read {name}.properties, or else cli.properties, from the folder the binary is in.
+	 *
+	 * @return The properties, empty if neither file exists or can be read
+	 */
+	private static Properties loadJarDirProperties() {
+		File cliPropFile = new File(getJarDir(), getName().toLowerCase() + ".properties");
+		if (!cliPropFile.isFile()) {
+			LoaderLog.debug(cliPropFile.getPath() + " NOT FOUND");
+			cliPropFile = new File(getJarDir(), "cli.properties");
+		}
+		if (!cliPropFile.isFile()) {
+			LoaderLog.debug(cliPropFile.getPath() + " NOT FOUND");
+			return new Properties();
+		}
+		try {
+			return loadProperties(cliPropFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new Properties();
+		}
 	}
 
 	private static Boolean isShebang(String uri) throws IOException {
@@ -1045,33 +1220,6 @@ public class LoaderCLIMain {
 		shellPath = value;
 	}
 
-	private static Map<String, String> toMap(String[] args) {
-		int index;
-		Map<String, String> config = new HashMap<String, String>();
-		String raw, key, value;
-		if (args != null) {
-			for (String arg : args) {
-				raw = arg.trim();
-				if (raw.length() == 0) {
-					continue;
-				}
-				if (raw.startsWith("-")) {
-					raw = raw.substring(1).trim();
-				}
-				index = raw.indexOf('=');
-				if (index == -1) {
-					key = raw;
-					value = "";
-				} else {
-					key = raw.substring(0, index).trim();
-					value = raw.substring(index + 1).trim();
-				}
-				config.put(key.toLowerCase(), value);
-			}
-		}
-		return config;
-	}
-
 	static Boolean versionFileMatches(File versionFile, String resourcePath)
 			throws IOException {
 		if (versionFile.exists()) {
@@ -1083,11 +1231,11 @@ public class LoaderCLIMain {
 				VersionComparator versionComparator = new VersionComparator();
 				if (versionComparator
 						.compare(currentVersion, installedVersion) > 0) {
-					log.warn("Current version higher than installed version! /n  *current: "
+					LoaderLog.warn("Current version higher than installed version! /n  *current: "
 							+ currentVersion
 							+ "\n installed: "
 							+ installedVersion);
-					log.debug("Current version higher than installed version: "
+					LoaderLog.debug("Current version higher than installed version: "
 							+ versionFile.getAbsolutePath()
 							+ "/"
 							+ resourcePath
@@ -1098,11 +1246,11 @@ public class LoaderCLIMain {
 					return false;
 				}
 			} catch (Exception e) {
-				log.warn("could not determine version: " + e.getMessage());
+				LoaderLog.warn("could not determine version: " + e.getMessage());
 				return false;
 			}
 		} else {
-			log.debug("update set to true -- no version.properties: "
+			LoaderLog.debug("update set to true -- no version.properties: "
 					+ versionFile.getAbsolutePath());
 			return false;
 		}
@@ -0,0 +1,337 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The loader's log. Messages go to the console as they always have: debug
+ * messages only with -clidebug, everything else always.
+ *
+ * With -clilog, every message including debug is also written to
+ * CLI_HOME/logs/loader.log (or the file given with -clilog=/path) next to the
+ * shell's commandbox.log, in the same layout and with the same rotation as
+ * LogBox uses for that file. Callers only queue the message; a background
+ * thread formats and writes it, and the queue is drained when the JVM exits.
+ *
+ * Debug messages that are expensive to build should be passed as a
+ * {@link Message} so nothing is evaluated unless someone will see it.
+ */
+final class LoaderLog {
+
+	/**
+	 * A lazily built message
+	 */
+	interface Message {
+		String get() throws Exception;
+	}
+
+	enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	public static final String FILE_NAME = "loader.log";
+
+	private static final String CR = System.getProperty("line.separator");
+
+	private static volatile PrintStream printStream;
+	private static volatile boolean debug;
+	private static volatile FileSink file;
+
+	private LoaderLog() {
+	}
+
+	public static void printstream(PrintStream stream) {
+		printStream = stream;
+	}
+
+	public static PrintStream printstream() {
+		return printStream != null ? printStream : System.out;
+	}
+
+	/**
+	 * Show debug messages on the console
+	 */
+	public static void setDebug(boolean enabled) {
+		debug = enabled;
+	}
+
+	/**
+	 * @return true if debug messages go anywhere, so it's worth building them
+	 */
+	public static boolean isDebugEnabled() {
+		return debug || file != null;
+	}
+
+	public static void debug(String message) {
+		if (isDebugEnabled()) {
+			log(Level.DEBUG, message);
+		}
+	}
+
+	public static void debug(Message message) {
+		if (isDebugEnabled()) {
+			String text;
+			try {
+				text = message.get();
+			} catch (Exception e) {
+				text = "Could not build log message: " + e;
+			}
+			log(Level.DEBUG, text);
+		}
+	}
+
+	public static void error(String message) {
+		log(Level.ERROR, message);
+	}
+
+	public static void warn(String message) {
+		log(Level.WARN, message);
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, message);
+	}
+
+	private static void log(Level level, String message) {
+		message = message.replace("/n", CR);
+		if (level != Level.DEBUG || debug) {
+			printstream().println(message);
+		}
+		FileSink sink = file;
+		if (sink != null) {
+			sink.offer(new Entry(System.currentTimeMillis(), level, message));
+		}
+	}
+
+	/**
+	 * Start queueing messages for the log file. They are held until
+	 * {@link #setFile(File)} says where to write them, since the home folder
+	 * isn't known yet when the flags are read.
+	 */
+	public static synchronized void enableFile() {
+		if (file == null) {
+			file = new FileSink();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					close();
+				}
+			}, "CommandBox loader log flush"));
+		}
+	}
+
+	/**
+	 * @param logFile Where to write queued and future messages. Ignored unless
+	 *                {@link #enableFile()} was called.
+	 */
+	public static synchronized void setFile(File logFile) {
+		if (file != null) {
+			file.start(logFile);
+		}
+	}
+
+	/**
+	 * Write out everything queued and close the log file.
+	 */
+	public static synchronized void close() {
+		if (file != null) {
+			file.close();
+		}
+	}
+
+	private static final class Entry {
+		final long time;
+		final Level level;
+		final String message;
+		final String thread;
+
+		Entry(long time, Level level, String message) {
+			this.time = time;
+			this.level = level;
+			this.message = message;
+			this.thread = Thread.currentThread().getName();
+		}
+	}
+
+	/**
+	 * A fixed size ring buffer of entries and the thread that writes them out.
+	 * If the writer falls a full buffer behind, new debug messages are dropped
+	 * and counted, while other levels wait up to a second for room.
+	 */
+	private static final class FileSink implements Runnable {
+		// Same as LogBox's RollingFileAppender defaults and the archives kept for commandbox.log
+		private static final long MAX_SIZE = 2000 * 1024;
+		private static final int MAX_ARCHIVES = 5;
+		private static final int CAPACITY = 4096;
+		private static final Entry STOP = new Entry(0, Level.DEBUG, "");
+
+		private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(CAPACITY);
+		private final AtomicInteger dropped = new AtomicInteger();
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+		private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+		private File logFile;
+		private Thread writer;
+		private Writer out;
+		private long size;
+
+		void offer(Entry entry) {
+			boolean queued = queue.offer(entry);
+			if (!queued && entry.level != Level.DEBUG) {
+				try {
+					queued = queue.offer(entry, 1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (!queued) {
+				dropped.incrementAndGet();
+			}
+		}
+
+		synchronized void start(File logFile) {
+			if (writer != null) {
+				return;
+			}
+			this.logFile = logFile;
+			writer = new Thread(this, "CommandBox loader log");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		synchronized void close() {
+			if (writer == null) {
+				return;
+			}
+			try {
+				if (queue.offer(STOP, 5, TimeUnit.SECONDS)) {
+					writer.join(5000);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer = null;
+		}
+
+		@Override
+		public void run() {
+			try {
+				open();
+				while (true) {
+					Entry entry = queue.poll(1, TimeUnit.SECONDS);
+					if (entry == STOP) {
+						break;
+					}
+					if (entry == null) {
+						out.flush();
+						continue;
+					}
+					int lost = dropped.getAndSet(0);
+					if (lost > 0) {
+						write(new Entry(entry.time, Level.WARN, lost + " log messages were dropped"));
+					}
+					write(entry);
+					if (queue.isEmpty()) {
+						out.flush();
+					}
+				}
+			} catch (Exception e) {
+				System.err.println("Could not write " + logFile + ": " + e.getMessage());
+			} finally {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+
+		private void open() throws IOException {
+			File dir = logFile.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.exists()) {
+				dir.mkdirs();
+			}
+			size = logFile.length();
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8"));
+		}
+
+		private void write(Entry entry) throws IOException {
+			Date date = new Date(entry.time);
+			// Same layout as LogBox's FileAppender so both logs read alike
+			String line = "\"" + entry.level + "\",\"loader\",\"" + dateFormat.format(date) + "\",\""
+					+ timeFormat.format(date) + "\",\"" + entry.thread + "\",\""
+					+ entry.message.replace("\"", "\"\"") + "\"" + CR;
+			if (size + line.length() > MAX_SIZE && size > 0) {
+				rotate();
+			}
+			out.write(line);
+			size += line.length();
+		}
+
+		/**
+		 * Zip the current file up and start a new one, keeping the newest
+		 * archives the way LogBox's FileRotator does.
+		 */
+		private void rotate() throws IOException {
+			out.close();
+			String baseName = logFile.getName().replaceFirst("\\.log$", "");
+			File dir = logFile.getAbsoluteFile().getParentFile();
+			File[] archives = dir.listFiles((d, n) -> n.startsWith(baseName + ".") && n.endsWith(".zip"));
+			if (archives != null && archives.length >= MAX_ARCHIVES) {
+				// Named by timestamp, so sorting by name is oldest first
+				List<File> oldest = new ArrayList<File>(Arrays.asList(archives));
+				oldest.sort(null);
+				for (int i = 0; i <= archives.length - MAX_ARCHIVES; i++) {
+					oldest.get(i).delete();
+				}
+			}
+			String stamp = new SimpleDateFormat("yyyyMMdd.HHmmss").format(new Date());
+			File archive = new File(dir, baseName + "." + stamp + ".zip");
+			ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive));
+			InputStream in = new FileInputStream(logFile);
+			try {
+				zip.putNextEntry(new ZipEntry(logFile.getName()));
+				Util.writeStreamTo(in, zip, 8 * 1024);
+				zip.closeEntry();
+			} finally {
+				in.close();
+				zip.close();
+			}
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, false), "UTF-8"));
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The loader's own command line flags, separated from the arguments that are
+ * passed through to the shell in a single pass over argv.
+ *
+ * Flags start with one or two dashes and are matched case-insensitively by
+ * prefix, as the loader always has:
+ * <ul>
+ * <li>-clidebug</li>
+ * <li>-cliupdate</li>
+ * <li>-clicds (handled by the box binary, only stripped here)</li>
+ * <li>-clidaemon</li>
+ * <li>-clitimeline or -clitimeline=/path/to.json</li>
+ * <li>-clilog or -clilog=/path/to.log</li>
+ * <li>-clishellpath=path or -clishellpath path</li>
+ * <li>-cliworkingdir=path or -cliworkingdir path</li>
+ * <li>-{name}_home=path, for example -commandbox_home=/opt/box</li>
+ * </ul>
+ * Parsing touches no static state, so it is safe to do more than once per JVM.
+ * The same goes for working out the home directory and merging the properties
+ * files, which take everything they look at as arguments.
+ */
+public final class LoaderOptions {
+
+	private boolean debug;
+	private boolean update;
+	private boolean daemon;
+	private boolean timeline;
+	private String timelineTarget;
+	private boolean log;
+	private String logTarget;
+	private String home;
+	private String shellPath;
+	private String workingDir;
+	private final List<String> arguments;
+
+	private LoaderOptions(int size) {
+		arguments = new ArrayList<String>(size);
+	}
+
+	/**
+	 * @param args The command line
+	 * @param name The CLI name from cli.properties, used for the -{name}_home flag
+	 * @return The parsed options
+	 */
+	public static LoaderOptions parse(List<String> args, String name) {
+		LoaderOptions options = new LoaderOptions(args.size());
+		String homeFlag = name.toLowerCase() + "_home";
+		for (int i = 0; i < args.size(); i++) {
+			String arg = args.get(i);
+			String flag = flagName(arg);
+			if (flag == null) {
+				options.arguments.add(arg);
+			} else if (flag.startsWith("clidebug")) {
+				options.debug = true;
+			} else if (flag.startsWith("cliupdate")) {
+				options.update = true;
+			} else if (flag.startsWith("clicds")) {
+				// Already acted on by the box binary before the JVM started
+			} else if (flag.startsWith("clidaemon")) {
+				options.daemon = true;
+			} else if (flag.startsWith("clitimeline")) {
+				options.timeline = true;
+				options.timelineTarget = remainderOf(arg);
+			} else if (flag.startsWith("clilog")) {
+				options.log = true;
+				options.logTarget = remainderOf(arg);
+			} else if (flag.startsWith("clishellpath")) {
+				options.shellPath = valueOf(arg);
+				if (options.shellPath == null && i + 1 < args.size()) {
+					options.shellPath = args.get(++i);
+				}
+			} else if (flag.startsWith("cliworkingdir")) {
+				options.workingDir = valueOf(arg);
+				if (arg.indexOf('=') == -1 && i + 1 < args.size()) {
+					options.workingDir = args.get(++i);
+				}
+			} else if (flag.startsWith(homeFlag)) {
+				String value = remainderOf(arg);
+				options.home = value == null ? "" : value.trim();
+			} else {
+				options.arguments.add(arg);
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * Work out the home directory from, in order: the -{name}_home flag, the
+	 * properties file next to the binary, an environment variable, a system
+	 * property and the built in cli.properties.
+	 * 
+	 * @param name        The CLI name from cli.properties
+	 * @param jarDirProps The properties next to the binary
+	 * @param jarDir      The folder the binary is in. Relative homes in
+	 *                    jarDirProps are resolved against it.
+	 * @param env         The environment variables
+	 * @param systemProps The system properties
+	 * @param props       The built in properties
+	 * @return The home, or null if none of them name one
+	 */
+	public File resolveHome(String name, Properties jarDirProps, File jarDir, Map<String, String> env,
+			Properties systemProps, Properties props) {
+		String homeKey = name + "_home";
+		if (home != null) {
+			return new File(home);
+		}
+		String jarDirHome = getNoCase(jarDirProps, "cli.home");
+		if (jarDirHome == null) {
+			jarDirHome = getNoCase(jarDirProps, homeKey);
+		}
+		if (jarDirHome != null) {
+			// A relative path in the properties file is relative to where the file is
+			File resolved = new File(jarDirHome);
+			return resolved.isAbsolute() ? resolved : new File(jarDir, jarDirHome);
+		}
+		if (getNoCase(env, homeKey) != null) {
+			return new File(getNoCase(env, homeKey));
+		}
+		if (getNoCase(systemProps, homeKey) != null) {
+			return new File(getNoCase(systemProps, homeKey));
+		}
+		if (getNoCase(props, homeKey) != null) {
+			return new File(getNoCase(props, homeKey));
+		}
+		if (getNoCase(props, "cli.home") != null) {
+			return new File(getNoCase(props, "cli.home"));
+		}
+		return null;
+	}
+
+	/**
+	 * @param source    The lowest precedence properties
+	 * @param overrides Properties to lay over them, each one winning over those
+	 *                  before it
+	 * @return A new merged set. None of the arguments are changed.
+	 */
+	public static Properties mergeProperties(Properties source, Properties... overrides) {
+		Properties merged = new Properties();
+		merged.putAll(source);
+		for (Properties override : overrides) {
+			merged.putAll(override);
+		}
+		return merged;
+	}
+
+	/**
+	 * Find a value by the start of its key, ignoring case and allowing the key to
+	 * start with a dash, which is how the loader has always looked these up.
+	 * 
+	 * @return The value, or null if no key matches
+	 */
+	static String getNoCase(Map<?, ?> source, String text) {
+		String prefix = text.toLowerCase();
+		for (Map.Entry<?, ?> entry : source.entrySet()) {
+			String key = String.valueOf(entry.getKey()).toLowerCase();
+			// check for "--" too
+			if (key.startsWith(prefix) || key.startsWith('-' + prefix)) {
+				return String.valueOf(entry.getValue());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The flag without its leading dashes, lower cased, or null if the
+	 *         argument is not a flag
+	 */
+	private static String flagName(String arg) {
+		if (!arg.startsWith("-")) {
+			return null;
+		}
+		int start = arg.startsWith("--") ? 2 : 1;
+		return arg.substring(start).toLowerCase();
+	}
+
+	/**
+	 * @return Everything after the first "=", or null if there is none
+	 */
+	private static String remainderOf(String arg) {
+		int equals = arg.indexOf('=');
+		return equals == -1 ? null : arg.substring(equals + 1);
+	}
+
+	/**
+	 * @return What follows the first "=" up to the next "=", or null if there
+	 *         is none, which is how the loader has always split these flags
+	 */
+	private static String valueOf(String arg) {
+		int equals = arg.indexOf('=');
+		if (equals == -1) {
+			return null;
+		}
+		int next = arg.indexOf('=', equals + 1);
+		return next == -1 ? arg.substring(equals + 1) : arg.substring(equals + 1, next);
+	}
+
+	public boolean isDebug() {
+		return debug;
+	}
+
+	public boolean isUpdate() {
+		return update;
+	}
+
+	/**
+	 * @return Whether to run the command through the resident daemon, see
+	 *         {@link BoxDaemon}
+	 */
+	public boolean isDaemon() {
+		return daemon;
+	}
+
+	public boolean isTimeline() {
+		return timeline;
+	}
+
+	/**
+	 * @return Where to write the timeline, or null for stderr
+	 */
+	public String getTimelineTarget() {
+		return timelineTarget;
+	}
+
+	public boolean isLog() {
+		return log;
+	}
+
+	/**
+	 * @return Where to write the loader log, or null for CLI_HOME/logs/loader.log
+	 */
+	public String getLogTarget() {
+		return logTarget;
+	}
+
+	/**
+	 * @return The home passed with -{name}_home, an empty string if the flag had
+	 *         no value, or null if it wasn't passed
+	 */
+	public String getHome() {
+		return home;
+	}
+
+	/**
+	 * @return The shell passed with -clishellpath, or null
+	 */
+	public String getShellPath() {
+		return shellPath;
+	}
+
+	/**
+	 * @return The directory passed with -cliworkingdir, or null
+	 */
+	public String getWorkingDir() {
+		return workingDir;
+	}
+
+	/**
+	 * @return The arguments for the shell, in their original order
+	 */
+	public List<String> getArguments() {
+		return Collections.unmodifiableList(arguments);
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a child process and watches its output for a readiness marker.
+ * Output is read on its own thread as it arrives and a second thread waits for
+ * the process to exit, so callers are woken up the moment the child is ready or
+ * gone instead of polling.
+ */
+public class ProcessSupervisor {
+
+	public static final List<String> DEFAULT_READY_MARKERS = Arrays.asList("Server is up - ");
+
+	private static final int MAX_OUTPUT_LINES = 500;
+
+	public enum State {
+		READY, EXITED, TIMED_OUT
+	}
+
+	public interface LineListener {
+		void line(String line);
+	}
+
+	private final Process process;
+	private final List<String> readyMarkers;
+	private final LineListener listener;
+	private final long startNanos;
+	private final LinkedList<String> output = new LinkedList<String>();
+	private final CountDownLatch settled = new CountDownLatch(1);
+	private volatile long readyNanos = -1;
+	private volatile String readyLine;
+	private volatile Integer exitCode;
+
+	private ProcessSupervisor(Process process, List<String> readyMarkers, LineListener listener, long startNanos) {
+		this.process = process;
+		this.readyMarkers = readyMarkers;
+		this.listener = listener;
+		this.startNanos = startNanos;
+	}
+
+	/**
+	 * Start a process with stderr merged into stdout.
+	 *
+	 * @param cmdarray     The command and its arguments
+	 * @param readyMarkers A line containing any of these means the process is ready
+	 * @param listener     Called with every line of output. May be null.
+	 * @return The supervisor for the running process
+	 * @throws IOException if the process can't be started
+	 */
+	public static ProcessSupervisor start(List<String> cmdarray, List<String> readyMarkers, LineListener listener)
+			throws IOException {
+		ProcessBuilder processBuilder = new ProcessBuilder(cmdarray);
+		processBuilder.redirectErrorStream(true);
+		long startNanos = System.nanoTime();
+		ProcessSupervisor supervisor = new ProcessSupervisor(processBuilder.start(), readyMarkers, listener,
+				startNanos);
+		supervisor.watch();
+		return supervisor;
+	}
+
+	private void watch() {
+		final Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));
+					String line;
+					while ((line = br.readLine()) != null) {
+						onLine(line);
+					}
+				} catch (IOException e) {
+					// The stream closes when the process is destroyed
+				}
+			}
+		}, "CommandBox process output");
+		reader.setDaemon(true);
+		reader.start();
+
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int code = process.waitFor();
+					// Let the reader drain so a marker printed right before exit isn't missed
+					reader.join();
+					exitCode = code;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				settled.countDown();
+			}
+		}, "CommandBox process exit");
+		waiter.setDaemon(true);
+		waiter.start();
+	}
+
+	private void onLine(String line) {
+		synchronized (output) {
+			output.add(line);
+			if (output.size() > MAX_OUTPUT_LINES) {
+				output.removeFirst();
+			}
+		}
+		if (listener != null) {
+			listener.line(line);
+		}
+		if (readyLine == null) {
+			for (String marker : readyMarkers) {
+				if (line.contains(marker)) {
+					readyNanos = System.nanoTime();
+					readyLine = line;
+					settled.countDown();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Block until the process prints a ready marker, exits, or the timeout passes.
+	 *
+	 * @param timeoutMillis How long to wait
+	 * @return What happened first
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public State awaitReady(long timeoutMillis) throws InterruptedException {
+		settled.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		if (readyLine != null) {
+			return State.READY;
+		}
+		if (exitCode != null) {
+			return State.EXITED;
+		}
+		return State.TIMED_OUT;
+	}
+
+	public Process getProcess() {
+		return process;
+	}
+
+	/**
+	 * @return The exit code, or null if the process is still running
+	 */
+	public Integer getExitCode() {
+		return exitCode;
+	}
+
+	/**
+	 * @return The line that contained the ready marker, or null if not ready yet
+	 */
+	public String getReadyLine() {
+		return readyLine;
+	}
+
+	/**
+	 * @return Milliseconds from start until the ready marker was seen, or -1 if
+	 *         not ready yet
+	 */
+	public long getTimeToReadyMillis() {
+		return readyNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(readyNanos - startNanos);
+	}
+
+	/**
+	 * @return The most recent lines of output, up to 500
+	 */
+	public List<String> getOutput() {
+		synchronized (output) {
+			return new ArrayList<String>(output);
+		}
+	}
+
+	public void destroy() {
+		process.destroy();
+	}
+}
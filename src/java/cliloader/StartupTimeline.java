@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records how long each phase of startup took.
+ * Turn it on with -clitimeline (written to stderr), -clitimeline=/path/to.json,
+ * or the cfml.cli.timeline system property set to "stderr" or a file path.
+ * Each mark stores a monotonic timestamp plus the JVM's loaded class count and
+ * GC totals at that moment. When the timeline is off, marking costs a single
+ * boolean check.
+ *
+ * The CFML side adds its own phases with
+ * createObject( 'java', 'cliloader.StartupTimeline' ).mark( 'name' )
+ *
+ * A phase's duration is the time since the mark before it. Work that runs on
+ * another thread alongside startup is recorded with
+ * {@link #markAsync(String, String)} instead, which is timed from the mark it
+ * started after and flagged as async, so it doesn't shorten or stretch the
+ * phases around it.
+ */
+public class StartupTimeline {
+
+	public static final String PROPERTY = "cfml.cli.timeline";
+
+	private static final long originNanos = System.nanoTime();
+	private static final List<Phase> phases = new ArrayList<Phase>();
+	private static volatile boolean enabled = false;
+	private static String target = "stderr";
+
+	private static class Phase {
+		final String name;
+		final String thread;
+		final long nanos;
+		final long classesLoaded;
+		final long gcCount;
+		final long gcMillis;
+		// Async phases are timed from startedNanos, the others from the phase before them
+		final boolean async;
+		final long startedNanos;
+
+		Phase(String name, String thread, long nanos, long classesLoaded, long gcCount, long gcMillis,
+				boolean async, long startedNanos) {
+			this.name = name;
+			this.thread = thread;
+			this.nanos = nanos;
+			this.classesLoaded = classesLoaded;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+			this.async = async;
+			this.startedNanos = startedNanos;
+		}
+	}
+
+	/**
+	 * Turn the timeline on.
+	 *
+	 * @param output "stderr" or the path of a file to write the JSON to
+	 */
+	public static synchronized void enable(String output) {
+		target = (output == null || output.trim().length() == 0) ? "stderr" : output.trim();
+		enabled = true;
+		System.setProperty(PROPERTY, target);
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Record the end of a phase. Does nothing unless the timeline is on.
+	 *
+	 * @param name The name of the phase that just finished
+	 */
+	public static void mark(String name) {
+		record(name, false, 0);
+	}
+
+	/**
+	 * Record the end of a phase that ran on its own thread alongside startup.
+	 * Does nothing unless the timeline is on.
+	 *
+	 * @param name         The name of the phase that just finished
+	 * @param startedAfter The mark the phase's thread was started after. The
+	 *                     phase is timed from the latest mark with this name,
+	 *                     or from the loader's start if there is none.
+	 */
+	public static void markAsync(String name, String startedAfter) {
+		long startedNanos = originNanos;
+		synchronized (phases) {
+			for (int i = phases.size() - 1; i >= 0; i--) {
+				if (phases.get(i).name.equals(startedAfter)) {
+					startedNanos = phases.get(i).nanos;
+					break;
+				}
+			}
+		}
+		record(name, true, startedNanos);
+	}
+
+	private static void record(String name, boolean async, long startedNanos) {
+		if (!enabled) {
+			return;
+		}
+		long nanos = System.nanoTime();
+		long gcCount = 0;
+		long gcMillis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(0, gc.getCollectionCount());
+			gcMillis += Math.max(0, gc.getCollectionTime());
+		}
+		Phase phase = new Phase(name, Thread.currentThread().getName(), nanos,
+				ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount(), gcCount, gcMillis,
+				async, startedNanos);
+		synchronized (phases) {
+			phases.add(phase);
+		}
+	}
+
+	/**
+	 * Write the phases recorded so far as JSON to stderr or the configured file.
+	 */
+	public static synchronized void write() {
+		if (!enabled) {
+			return;
+		}
+		String json = toJSON();
+		if (target.equalsIgnoreCase("stderr")) {
+			System.err.println(json);
+			return;
+		}
+		try {
+			File file = new File(target);
+			if (file.getParentFile() != null) {
+				file.getParentFile().mkdirs();
+			}
+			Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+			writer.write(json);
+			writer.close();
+		} catch (IOException e) {
+			PrintStream err = System.err;
+			err.println("Could not write startup timeline to " + target + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return The recorded phases as a JSON document
+	 */
+	public static String toJSON() {
+		List<Phase> snapshot;
+		synchronized (phases) {
+			snapshot = new ArrayList<Phase>(phases);
+		}
+		StringBuilder json = new StringBuilder();
+		json.append("{\"jvmUptimeAtLoaderStartMs\":")
+				.append(ManagementFactory.getRuntimeMXBean().getUptime()
+						- (System.nanoTime() - originNanos) / 1000000)
+				.append(",\"phases\":[");
+		long previous = originNanos;
+		for (int i = 0; i < snapshot.size(); i++) {
+			Phase phase = snapshot.get(i);
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"name\":\"").append(escape(phase.name)).append('"')
+					.append(",\"thread\":\"").append(escape(phase.thread)).append('"')
+					.append(",\"sinceStartNanos\":").append(phase.nanos - originNanos)
+					.append(",\"durationNanos\":")
+					.append(phase.nanos - (phase.async ? phase.startedNanos : previous))
+					.append(",\"classesLoaded\":").append(phase.classesLoaded)
+					.append(",\"gcCount\":").append(phase.gcCount)
+					.append(",\"gcTimeMs\":").append(phase.gcMillis);
+			if (phase.async) {
+				json.append(",\"async\":true");
+			} else {
+				previous = phase.nanos;
+			}
+			json.append('}');
+		}
+		json.append("]}");
+		return json.toString();
+	}
+
+	private static String escape(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				escaped.append('\\').append(c);
+			} else if (c < 0x20) {
+				escaped.append(String.format("\\u%04x", (int) c));
+			} else {
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+}
@@ -16,38 +16,66 @@
 package cliloader;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Pack200;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import cliloader.LoaderCLIMain.ExtFilter;
 
 public class Util {
 
 	private static final int KB = 1024;
+	private static final int PARALLEL_DELETE_THRESHOLD = 64;
+	private static final long COPY_CHUNK_SIZE = 64L * KB * KB;
+	private static final int IO_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
 
 	public static void cleanUpUnpacked(File libDir) {
 		if (libDir.exists()
@@ -62,23 +90,77 @@ public class Util {
 	}
 
 	public static void copyFile(File source, File dest) throws IOException {
+		copyFile(source, dest, false, false);
+	}
+
+	/**
+	 * Copy a file using the file channels so the OS can move the bytes without
+	 * bringing them into the JVM. Large files are sent in chunks since a single
+	 * transferTo() call may move less than asked for.
+	 * 
+	 * @param source            The file to copy
+	 * @param dest              The file to create or overwrite
+	 * @param preserveTimestamp Give the copy the same last modified date as the
+	 *                          source
+	 * @param allowLink         Create a hard link instead of a copy when both files
+	 *                          are on the same file system. Only use this when
+	 *                          neither file will be modified in place afterwards.
+	 *                          The link is made under a temporary name and moved
+	 *                          over dest, so dest is never missing or half written.
+	 */
+	public static void copyFile(File source, File dest, boolean preserveTimestamp, boolean allowLink)
+			throws IOException {
+		// Opening dest for writing would truncate the source
+		if (dest.exists() && Files.isSameFile(source.toPath(), dest.toPath())) {
+			return;
+		}
+		if (allowLink) {
+			File link = new File(dest.getAbsoluteFile().getParentFile(), "." + dest.getName() + ".link-" + System.nanoTime());
+			try {
+				Files.createLink(link.toPath(), source.toPath());
+				try {
+					Files.move(link.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(link.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				return;
+			} catch (IOException | UnsupportedOperationException e) {
+				// Different file systems or no link support. Fall back to a real copy.
+				Files.deleteIfExists(link.toPath());
+			}
+		}
 		FileInputStream fi = new FileInputStream(source);
-		FileChannel fic = fi.getChannel();
-		MappedByteBuffer mbuf = fic.map(FileChannel.MapMode.READ_ONLY, 0,
-				source.length());
-		fic.close();
-		fi.close();
 		FileOutputStream fo = new FileOutputStream(dest);
-		FileChannel foc = fo.getChannel();
-		foc.write(mbuf);
-		foc.close();
-		fo.close();
+		try {
+			FileChannel fic = fi.getChannel();
+			FileChannel foc = fo.getChannel();
+			long size = fic.size();
+			long position = 0;
+			while (position < size) {
+				long transferred = fic.transferTo(position, Math.min(COPY_CHUNK_SIZE, size - position), foc);
+				if (transferred <= 0) {
+					break;
+				}
+				position += transferred;
+			}
+		} finally {
+			fo.close();
+			fi.close();
+		}
+		if (preserveTimestamp) {
+			dest.setLastModified(source.lastModified());
+		}
 	}
 
 	public static void copyInternalFile(ClassLoader classLoader,
 			String resourcePath, File dest) {
 		URL resource = classLoader.getResource(resourcePath);
 		try {
+			if ("file".equals(resource.getProtocol())) {
+				copyFile(new File(resource.toURI()), dest);
+				return;
+			}
 			BufferedInputStream bis = new BufferedInputStream(
 					resource.openStream());
 			FileOutputStream output = new FileOutputStream(dest);
@@ -90,6 +172,8 @@ public class Util {
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} catch (URISyntaxException e) {
+			e.printStackTrace();
 		}
 
 	}
@@ -162,55 +246,38 @@ public class Util {
 
 	public static void launch(List<String> cmdarray, int timeout)
 			throws IOException, InterruptedException {
-		// byte[] buffer = new byte[1024];
-
-		ProcessBuilder processBuilder = new ProcessBuilder(cmdarray);
-		processBuilder.redirectErrorStream(true);
-		Process process = processBuilder.start();
-		Thread.sleep(500);
-		InputStream is = process.getInputStream();
-		InputStreamReader isr = new InputStreamReader(is);
-		BufferedReader br = new BufferedReader(isr);
-		String line;
-		int exit = -1;
-		long start = System.currentTimeMillis();
 		System.out.print("Starting in background - ");
-		while (System.currentTimeMillis() - start < timeout) {
-			if (br.ready() && (line = br.readLine()) != null) {
-				// Outputs your process execution
-				try {
-					exit = process.exitValue();
-					if (exit == 0) {
-						// Process finished
-						while ((line = br.readLine()) != null) {
-							System.out.println(line);
-						}
-						System.exit(0);
-					} else if (exit == 1) {
-						System.out.println();
-						printExceptionLine(line);
-						while ((line = br.readLine()) != null) {
-							printExceptionLine(line);
-						}
-						System.exit(1);
+		ProcessSupervisor supervisor = ProcessSupervisor.start(cmdarray, ProcessSupervisor.DEFAULT_READY_MARKERS,
+				new ProcessSupervisor.LineListener() {
+					@Override
+					public void line(String line) {
+						System.out.println("processoutput: " + line);
 					}
-				} catch (IllegalThreadStateException t) {
-					// This exceptions means the process has not yet finished.
-					// decide to continue, exit(0), or exit(1)
-					processOutout(line, process);
-				}
+				});
+
+		switch (supervisor.awaitReady(timeout)) {
+		case READY:
+			// start up was successful, quit out
+			System.out.println(supervisor.getReadyLine());
+			System.exit(0);
+			break;
+		case EXITED:
+			if (supervisor.getExitCode() == 0) {
+				System.exit(0);
 			}
-			Thread.sleep(100);
-		}
-		if (System.currentTimeMillis() - start > timeout) {
-			process.destroy();
+			System.out.println();
+			for (String line : supervisor.getOutput()) {
+				printExceptionLine(line);
+			}
+			System.exit(1);
+			break;
+		default:
+			supervisor.destroy();
 			System.out.println();
 			System.err.println("ERROR: Startup exceeded timeout of " + timeout
 					/ 1000 + " seconds - aborting!");
 			System.exit(1);
 		}
-		System.out.println("Server is up - ");
-		System.exit(0);
 	}
 
 	public static void printExceptionLine(String line) {
@@ -225,19 +292,6 @@ public class Util {
 		}
 	}
 
-	private static boolean processOutout(String line, Process process) {
-		System.out.println("processoutput: " + line);
-		if (line.indexOf("Server is up - ") != -1) {
-			// start up was successful, quit out
-			System.out.println(line);
-			System.exit(0);
-		} else if (line
-				.indexOf("Exception in thread \"main\" java.lang.RuntimeException") != -1) {
-			return true;
-		}
-		return false;
-	}
-
 	static String readFile(String path) throws IOException {
 		return readFile(path, StandardCharsets.UTF_8);
 	}
@@ -259,36 +313,22 @@ public class Util {
 	public static void checkIfJarsLocked(File libDir, String nameContains) {
 		if (libDir.exists()
 				&& libDir.listFiles(new ExtFilter(".jar")).length > 0) {
+			List<File> matches = new ArrayList<File>();
 			for (File previous : libDir.listFiles(new ExtFilter(".jar"))) {
 				// Look for runwar{version}.jar
 				if (previous.getAbsolutePath().toLowerCase().contains(nameContains)) {
-					try {
-						boolean result = previous.delete();
-
-						if (!result) {
-							System.err.println("");
-							System.err.println(
-									"CommandBox is having problems deleting your previous jars to complete the upgrade.");
-							System.err.println(
-									"Please close all open consoles and stop all running servers before trying again.");
-							Thread.sleep(5000);
-							System.exit(1);
-						}
-
-					} catch (Exception e) {
-						System.err.println("");
-						System.err.println(
-								"CommandBox is having problems deleting your previous jars to complete the upgrade.");
-						System.err.println("Error: " + e.getMessage());
-						System.err.println(
-								"Please close all open consoles and stop all running servers before trying again.");
-						try {
-							Thread.sleep(5000);
-						} catch (Throwable t) {
-						}
-						System.exit(1);
-					}
+					matches.add(previous);
+				}
+			}
+			Map<File, String> failures = deleteFiles(matches);
+			if (!failures.isEmpty()) {
+				System.err.println("");
+				System.err.println(
+						"CommandBox is having problems deleting your previous jars to complete the upgrade.");
+				for (Map.Entry<File, String> failure : failures.entrySet()) {
+					System.err.println("Error: " + failure.getKey().getAbsolutePath() + " " + failure.getValue());
 				}
+				exitAfterDeleteFailure();
 			}
 		}
 	}
@@ -296,35 +336,24 @@ public class Util {
 	public static void removePreviousLibs(File libDir) {
 		if (libDir.exists()
 				&& libDir.listFiles(new ExtFilter(".jar")).length > 0) {
-			for (File previous : libDir.listFiles(new ExtFilter(".jar"))) {
-				try {
-					boolean result = previous.delete();
-
-					if (!result) {
-						System.err.println("");
-						System.err.println("CommandBox could not delete the jar [" + previous.getAbsolutePath() + "]");
-						System.err.println(
-								"Please close all open consoles and stop all running servers before trying again.");
-						Thread.sleep(5000);
-						System.exit(1);
-					}
-
-				} catch (Exception e) {
-					System.err.println("");
-					System.err.println("CommandBox could not delete the jar [" + previous.getAbsolutePath() + "]");
-					System.err.println("Error: " + e.getMessage());
-					System.err.println(
-							"Please close all open consoles and stop all running servers before trying again.");
-					try {
-						Thread.sleep(5000);
-					} catch (Throwable t) {
-					}
-					System.exit(1);
+			Map<File, String> failures = deleteFiles(Arrays.asList(libDir.listFiles(new ExtFilter(".jar"))));
+			if (!failures.isEmpty()) {
+				System.err.println("");
+				for (Map.Entry<File, String> failure : failures.entrySet()) {
+					System.err.println("CommandBox could not delete the jar [" + failure.getKey().getAbsolutePath()
+							+ "] " + failure.getValue());
 				}
+				exitAfterDeleteFailure();
 			}
 		}
 	}
 
+	private static void exitAfterDeleteFailure() {
+		System.err.println(
+				"Please close all open consoles and stop all running servers before trying again.");
+		LoaderCLIMain.abort("Could not delete the previous jars to complete the upgrade", true);
+	}
+
 	public static void unpack(File inFile) {
 
 		JarOutputStream out = null;
@@ -371,7 +400,35 @@ public class Util {
 	}
 
 	public static void unzipInteralZip(ClassLoader classLoader,
-			String resourcePath, File libDir, boolean debug) {
+			String resourcePath, File libDir, boolean debug) throws IOException {
+		unzipInteralZip(classLoader, resourcePath, libDir, null, false, debug);
+	}
+
+	/**
+	 * Extract a zip from the classpath, optionally skipping entries that have not
+	 * changed since the last extraction.
+	 * The CRC and size of every extracted entry are recorded in the manifest file.
+	 * On the next extraction, any entry whose CRC and size match the manifest and
+	 * whose file is still on disk is left alone.
+	 * 
+	 * @param classLoader  The class loader to find the zip in
+	 * @param resourcePath The path of the zip on the classpath
+	 * @param libDir       The folder to extract into
+	 * @param manifestFile Where to read and write the entry digests. Pass null to
+	 *                     always write every entry.
+	 * @param removeStale  Delete files that were in the previous manifest but are
+	 *                     no longer in the zip. Every file that is about to be
+	 *                     replaced or removed is deleted before anything is
+	 *                     written, and the upgrade is aborted if one is locked, so
+	 *                     a locked jar never leaves the folder half updated.
+	 * @param debug        Output debugging info
+	 * @return The names of the entries that were written
+	 * @throws IOException if any entry could not be extracted. The manifest is not
+	 *                     updated in that case, so the next extraction tries again.
+	 */
+	public static List<String> unzipInteralZip(ClassLoader classLoader,
+			String resourcePath, File libDir, File manifestFile, boolean removeStale, final boolean debug)
+			throws IOException {
 		if (debug) {
 			System.out.println("Extracting " + resourcePath);
 		}
@@ -380,60 +437,288 @@ public class Util {
 		if (resource == null) {
 			System.err.println("Could not find the " + resourcePath
 					+ " on classpath!");
-			System.exit(1);
+			LoaderCLIMain.abort("Could not find the " + resourcePath + " on classpath", false);
 		}
-		class PrintDot extends TimerTask {
+
+		final Properties previousManifest = readManifest(manifestFile);
+		final Properties currentManifest = new Properties();
+		final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+		final AtomicInteger entriesDone = new AtomicInteger();
+		final AtomicLong bytesDone = new AtomicLong();
+		final int[] entriesTotal = new int[1];
+
+		class PrintProgress extends TimerTask {
 			@Override
 			public void run() {
-				System.out.print(".");
+				System.out.print("\r" + entriesDone.get() + "/" + entriesTotal[0] + " files, "
+						+ (bytesDone.get() / (KB * KB)) + " MB ");
 			}
 		}
-		Timer timer = new Timer();
-		PrintDot task = new PrintDot();
-		timer.schedule(task, 0, 2000);
+		Timer timer = new Timer(true);
+		PrintProgress task = new PrintProgress();
+		timer.schedule(task, 2000, 2000);
 
+		File tempZip = null;
+		ZipFile zipFile = null;
+		ExecutorService pool = null;
 		try {
+			// The zip is usually nested inside box.jar. Copy it out once so the entries
+			// can be read in any order from several threads, but only if a quick pass
+			// over the stream finds something to write.
+			if ("file".equals(resource.getProtocol())) {
+				zipFile = new ZipFile(new File(resource.toURI()));
+			} else if (!previousManifest.isEmpty() && isUpToDate(resource, libDir, previousManifest, removeStale)) {
+				if (debug) {
+					System.out.println("Nothing has changed in " + resourcePath);
+				}
+				return written;
+			} else {
+				tempZip = File.createTempFile("box-", ".zip");
+				InputStream is = resource.openStream();
+				Files.copy(is, tempZip.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				is.close();
+				zipFile = new ZipFile(tempZip);
+			}
 
-			BufferedInputStream bis = new BufferedInputStream(
-					resource.openStream());
-			JarInputStream jis = new JarInputStream(bis);
-			JarEntry je = null;
-			while ((je = jis.getNextJarEntry()) != null) {
-				java.io.File f = new java.io.File(libDir.toString()
-						+ java.io.File.separator + je.getName());
+			// Work out what needs writing and create all the folders up front, so the
+			// workers only ever open and write files
+			List<ZipEntry> toWrite = new ArrayList<ZipEntry>();
+			Set<File> dirs = new TreeSet<File>();
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry je = entries.nextElement();
+				File f = new File(libDir, je.getName());
 				if (je.isDirectory()) {
-					f.mkdir();
+					dirs.add(f);
 					continue;
 				}
-				// Don't overwrite XML files. Specifically this is because overwriting the
-				// lucee-server.xml file screws up a lot of stuff.
-				// If it's there, leave it. This means we can't push Lucee setting changes in
-				// box updates.
-				if ((je.getName().endsWith(".xml") || je.getName().endsWith(".xml.cfm")) && f.isFile() && f.exists()) {
-					if (debug) {
+				// Matches JarInputStream, which never hands back the manifest
+				if (je.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+					continue;
+				}
+				String digest = entryDigest(je);
+				currentManifest.setProperty(je.getName(), digest != null ? digest : "");
+				if (!needsWriting(je, f, previousManifest)) {
+					if (debug && !String.valueOf(digest).equals(previousManifest.getProperty(je.getName()))) {
 						System.out.println("Skipping existing file: " + f.toString());
 					}
 					continue;
 				}
-				File parentDir = new File(f.getParent());
-				if (!parentDir.exists()) {
-					parentDir.mkdir();
+				dirs.add(f.getParentFile());
+				toWrite.add(je);
+			}
+			for (File dir : dirs) {
+				dir.mkdirs();
+			}
+			entriesTotal[0] = toWrite.size();
+
+			if (removeStale) {
+				List<File> replaced = new ArrayList<File>();
+				for (ZipEntry je : toWrite) {
+					File f = new File(libDir, je.getName());
+					if (f.exists()) {
+						replaced.add(f);
+					}
 				}
-				FileOutputStream fileOutStream = new FileOutputStream(f);
-				writeStreamTo(jis, fileOutStream, 8 * KB);
-				if (f.getPath().endsWith("pack.gz")) {
-					unpack(f);
-					fileOutStream.close();
-					f.delete();
+				for (String name : previousManifest.stringPropertyNames()) {
+					File stale = new File(libDir, name);
+					if (!currentManifest.containsKey(name) && stale.isFile()) {
+						if (debug) {
+							System.out.println("Removing file no longer shipped: " + stale.toString());
+						}
+						replaced.add(stale);
+					}
+				}
+				Map<File, String> failures = deleteFiles(replaced);
+				if (!failures.isEmpty()) {
+					System.err.println("");
+					System.err.println(
+							"CommandBox is having problems deleting your previous files to complete the upgrade.");
+					for (Map.Entry<File, String> failure : failures.entrySet()) {
+						System.err.println("Error: " + failure.getKey().getAbsolutePath() + " " + failure.getValue());
+					}
+					exitAfterDeleteFailure();
+				}
+			}
+
+			pool = Executors.newFixedThreadPool(Math.max(1, Math.min(IO_THREADS, toWrite.size())));
+			CompletionService<Void> results = new ExecutorCompletionService<Void>(pool);
+			final ZipFile source = zipFile;
+			final File destDir = libDir;
+			for (final ZipEntry je : toWrite) {
+				results.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						File f = new File(destDir, je.getName());
+						InputStream in = source.getInputStream(je);
+						FileOutputStream fileOutStream = new FileOutputStream(f);
+						try {
+							bytesDone.addAndGet(writeStreamTo(in, fileOutStream, 8 * KB));
+						} finally {
+							fileOutStream.close();
+							in.close();
+						}
+						// Stamp the file with the build's time rather than now, so the engine's
+						// compiled classes for it stay valid when identical content is extracted again
+						if (je.getTime() != -1) {
+							f.setLastModified(je.getTime());
+						}
+						written.add(je.getName());
+						if (f.getPath().endsWith("pack.gz")) {
+							unpack(f);
+							f.delete();
+						}
+						entriesDone.incrementAndGet();
+						return null;
+					}
+				});
+			}
+			// Stop at the first entry that fails, in whatever order they finish. The
+			// finally block cancels the rest.
+			for (int i = 0; i < toWrite.size(); i++) {
+				try {
+					results.take().get();
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
 				}
 			}
 
+			writeManifest(manifestFile, currentManifest);
+
+		} catch (IOException exc) {
+			throw exc;
 		} catch (Exception exc) {
-			task.cancel();
-			exc.printStackTrace();
+			throw new IOException("Could not extract " + resourcePath + " to " + libDir + ": " + exc, exc);
+		} finally {
+			timer.cancel();
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			if (zipFile != null) {
+				try {
+					zipFile.close();
+				} catch (IOException e) {
+				}
+			}
+			if (tempZip != null) {
+				tempZip.delete();
+			}
+		}
+		if (debug) {
+			System.out.println("Extracted " + written.size() + " files (" + bytesDone.get() / KB + " KB) from "
+					+ resourcePath);
+		}
+
+		return written;
+	}
+
+	/**
+	 * @return true unless the file on disk already matches the entry's digest in
+	 *         the manifest, or it is an XML file that exists and must be left alone
+	 */
+	private static boolean needsWriting(ZipEntry je, File f, Properties previousManifest) {
+		String digest = entryDigest(je);
+		if (digest != null && digest.equals(previousManifest.getProperty(je.getName()))
+				&& f.isFile() && f.length() == je.getSize()) {
+			return false;
+		}
+		// Don't overwrite XML files. Specifically this is because overwriting the
+		// lucee-server.xml file screws up a lot of stuff.
+		// If it's there, leave it. This means we can't push Lucee setting changes in
+		// box updates.
+		if ((je.getName().endsWith(".xml") || je.getName().endsWith(".xml.cfm")) && f.isFile()) {
+			return false;
 		}
-		task.cancel();
+		return true;
+	}
 
+	/**
+	 * Stream through a zip without writing anything to see whether an extraction
+	 * would change the folder.
+	 * 
+	 * @return true if no entry needs writing and, when removeStale is set, no file
+	 *         from the previous manifest needs removing
+	 */
+	private static boolean isUpToDate(URL resource, File libDir, Properties previousManifest, boolean removeStale)
+			throws IOException {
+		List<ZipEntry> entries = new ArrayList<ZipEntry>();
+		ZipInputStream zis = new ZipInputStream(new BufferedInputStream(resource.openStream()));
+		try {
+			ZipEntry je;
+			while ((je = zis.getNextEntry()) != null) {
+				if (!je.isDirectory() && !je.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+					entries.add(je);
+				}
+			}
+		} finally {
+			zis.close();
+		}
+		// Entries written with a data descriptor only get their CRC and size once the
+		// stream has moved past them, so check them all at the end
+		Set<String> names = new TreeSet<String>();
+		for (ZipEntry je : entries) {
+			if (needsWriting(je, new File(libDir, je.getName()), previousManifest)) {
+				return false;
+			}
+			names.add(je.getName());
+		}
+		if (removeStale) {
+			for (String name : previousManifest.stringPropertyNames()) {
+				if (!names.contains(name) && new File(libDir, name).isFile()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static String entryDigest(ZipEntry entry) {
+		if (entry.getCrc() == -1 || entry.getSize() == -1) {
+			return null;
+		}
+		return Long.toHexString(entry.getCrc()) + ":" + entry.getSize();
+	}
+
+	static Properties readManifest(File manifestFile) {
+		Properties manifest = new Properties();
+		if (manifestFile != null && manifestFile.isFile()) {
+			try {
+				InputStream is = new FileInputStream(manifestFile);
+				manifest.load(is);
+				is.close();
+			} catch (IOException e) {
+				// A missing or damaged manifest just means every entry gets written
+				manifest.clear();
+			}
+		}
+		return manifest;
+	}
+
+	static void writeManifest(File manifestFile, Properties manifest) throws IOException {
+		if (manifestFile == null) {
+			return;
+		}
+		File dir = manifestFile.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		// Written next to it and moved into place so a reader never sees half a file,
+		// even if another process is writing the same one
+		File staging = new File(dir, "." + manifestFile.getName() + ".tmp-" + System.nanoTime());
+		try {
+			OutputStream os = new FileOutputStream(staging);
+			try {
+				manifest.store(os, null);
+			} finally {
+				os.close();
+			}
+			try {
+				Files.move(staging.toPath(), manifestFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(staging.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			staging.delete();
+		}
 	}
 
 	public static int writeStreamTo(final InputStream input,
@@ -450,13 +735,167 @@ public class Util {
 		return answer;
 	}
 
+	/**
+	 * Delete a file or folder and everything in it.
+	 * Every file is attempted, even when some fail, and all the failures are
+	 * reported together in the exception.
+	 * 
+	 * @param f The file or folder to delete
+	 * @throws IOException if anything could not be deleted
+	 */
 	public static void deleteDirectory(File f) throws IOException {
-		if (f.isDirectory()) {
-			for (File c : f.listFiles())
-				deleteDirectory(c);
+		Map<File, String> failures = deleteTree(f.toPath());
+		if (!failures.isEmpty()) {
+			StringBuilder message = new StringBuilder("Failed to delete " + failures.size() + " file(s) under: " + f);
+			for (Map.Entry<File, String> failure : failures.entrySet()) {
+				message.append(System.lineSeparator()).append(" - ").append(failure.getKey()).append(" ")
+						.append(failure.getValue());
+			}
+			throw new FileNotFoundException(message.toString());
+		}
+	}
+
+	/**
+	 * Move a folder out of the way and delete it on a background thread so the
+	 * caller can re-create it right away. Anything left behind by an earlier
+	 * background delete that didn't finish before the JVM exited is deleted at
+	 * the same time.
+	 * 
+	 * @param f The folder to delete
+	 * @throws IOException if the folder can't be moved aside. Nothing is deleted
+	 *                     in that case.
+	 */
+	public static void deleteDirectoryInBackground(File f) throws IOException {
+		File aside = new File(f.getAbsoluteFile().getParentFile(), asidePrefix(f) + System.nanoTime());
+		Files.move(f.toPath(), aside.toPath());
+		deleteLeftoversInBackground(f);
+	}
+
+	/**
+	 * Finish any background deletes of this folder that were cut short when the
+	 * JVM exited. The deleting thread is a daemon so it never holds up a short
+	 * command, so call this on every start to make sure the copies moved aside
+	 * are eventually removed.
+	 * 
+	 * @param f The folder that was deleted in the background
+	 */
+	public static void deleteLeftoversInBackground(File f) {
+		File parent = f.getAbsoluteFile().getParentFile();
+		final String asidePrefix = asidePrefix(f);
+		final File[] leftovers = parent.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(asidePrefix);
+			}
+		});
+		if (leftovers == null || leftovers.length == 0) {
+			return;
+		}
+		Thread deleter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (File leftover : leftovers) {
+					deleteTree(leftover.toPath());
+				}
+			}
+		}, "CommandBox background delete");
+		deleter.setDaemon(true);
+		deleter.start();
+	}
+
+	private static String asidePrefix(File f) {
+		return "." + f.getName() + ".deleting-";
+	}
+
+	/**
+	 * Walk a tree, delete the files on a small thread pool, then remove the
+	 * folders deepest first.
+	 * 
+	 * @return The paths that could not be deleted and the reason why
+	 */
+	private static Map<File, String> deleteTree(Path root) {
+		final Map<File, String> failures = new LinkedHashMap<File, String>();
+		final List<File> files = new ArrayList<File>();
+		final List<File> dirs = new ArrayList<File>();
+		try {
+			// Symlinks are not followed, so only the link is removed, never its target
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					files.add(file.toFile());
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					failures.put(file.toFile(), e.toString());
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+					dirs.add(dir.toFile());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			failures.put(root.toFile(), e.toString());
+		}
+
+		failures.putAll(deleteFiles(files));
+		for (File dir : dirs) {
+			if (!dir.delete() && dir.exists()) {
+				failures.put(dir, "(folder could not be deleted)");
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Delete a list of files, in parallel when there are enough of them to be
+	 * worth it. Files that no longer exist count as deleted.
+	 * 
+	 * @return The files that could not be deleted and the reason why
+	 */
+	private static Map<File, String> deleteFiles(List<File> files) {
+		final Map<File, String> failures = Collections.synchronizedMap(new LinkedHashMap<File, String>());
+		if (files.size() < PARALLEL_DELETE_THRESHOLD) {
+			for (File file : files) {
+				deleteFile(file, failures);
+			}
+			return failures;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(IO_THREADS);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (final File file : files) {
+				results.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						deleteFile(file, failures);
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					results.get(i).get();
+				} catch (InterruptedException | ExecutionException e) {
+					failures.put(files.get(i), e.toString());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return failures;
+	}
+
+	private static void deleteFile(File file, Map<File, String> failures) {
+		try {
+			Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+			failures.put(file, e.toString());
 		}
-		if (!f.delete())
-			throw new FileNotFoundException("Failed to delete file: " + f);
 	}
 
 }
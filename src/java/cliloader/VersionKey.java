@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable, pre-tokenized version string.
+ * Each dot separated part is split into its leading number and the suffix that
+ * follows it, so "1.2b.3" becomes the numbers [1, 2, 3] and the suffixes
+ * ["", "b", ""]. Keys compare with the same rules as {@link VersionComparator}
+ * without re-parsing the strings.
+ */
+public final class VersionKey implements Comparable<VersionKey> {
+
+	static final int MAX_CACHE_SIZE = 4096;
+	private static final String[] NO_SUFFIXES = new String[0];
+	private static final ConcurrentMap<String, VersionKey> cache = new ConcurrentHashMap<String, VersionKey>();
+	private static final ConcurrentMap<String, String> suffixes = new ConcurrentHashMap<String, String>();
+
+	private final String version;
+	private final int[] numbers;
+	private final String[] suffixParts;
+
+	private VersionKey(String version, int[] numbers, String[] suffixParts) {
+		this.version = version;
+		this.numbers = numbers;
+		this.suffixParts = suffixParts;
+	}
+
+	/**
+	 * Get the key for a version string, parsing it only the first time it is
+	 * seen.
+	 *
+	 * @param version The version string
+	 * @return The parsed key
+	 */
+	public static VersionKey of(String version) {
+		if (version == null) {
+			throw new IllegalArgumentException("versionString is null");
+		}
+		VersionKey key = cache.get(version);
+		if (key == null) {
+			key = parse(version);
+			// A plain reset keeps the cache bounded without the bookkeeping of an LRU
+			if (cache.size() >= MAX_CACHE_SIZE) {
+				cache.clear();
+			}
+			cache.put(version, key);
+		}
+		return key;
+	}
+
+	/**
+	 * Parse a version string without consulting the cache.
+	 *
+	 * @param version The version string
+	 * @return The parsed key
+	 */
+	public static VersionKey parse(String version) {
+		int length = version.length();
+		int parts = 0;
+		if (length > 0) {
+			parts = 1;
+			// A trailing dot doesn't start another part
+			for (int i = 0; i < length - 1; i++) {
+				if (version.charAt(i) == '.') {
+					parts++;
+				}
+			}
+		}
+
+		int[] numbers = new int[parts];
+		String[] suffixParts = parts == 0 ? NO_SUFFIXES : new String[parts];
+		int position = 0;
+		for (int part = 0; part < parts; part++) {
+			int number = 0;
+			while (position < length) {
+				char c = version.charAt(position);
+				if (c < '0' || c > '9') {
+					break;
+				}
+				number = number * 10 + c - '0';
+				position++;
+			}
+			int suffixStart = position;
+			while (position < length && version.charAt(position) != '.') {
+				position++;
+			}
+			numbers[part] = number;
+			suffixParts[part] = internSuffix(version, suffixStart, position);
+			// Skip the dot
+			position++;
+		}
+		return new VersionKey(version, numbers, suffixParts);
+	}
+
+	private static String internSuffix(String version, int start, int end) {
+		if (start == end) {
+			return "";
+		}
+		String suffix = version.substring(start, end);
+		// parse() is also used on its own, so this is bounded separately from the key cache
+		if (suffixes.size() >= MAX_CACHE_SIZE) {
+			suffixes.clear();
+		}
+		String interned = suffixes.putIfAbsent(suffix, suffix);
+		return interned != null ? interned : suffix;
+	}
+
+	static int internedSuffixCount() {
+		return suffixes.size();
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	@Override
+	public int compareTo(VersionKey other) {
+		int common = Math.min(numbers.length, other.numbers.length);
+		for (int i = 0; i < common; i++) {
+			if (numbers[i] < other.numbers[i]) {
+				return -1;
+			}
+			if (numbers[i] > other.numbers[i]) {
+				return 1;
+			}
+
+			String suffix1 = suffixParts[i];
+			String suffix2 = other.suffixParts[i];
+			if (suffix1 == suffix2) {
+				continue;
+			}
+			if (suffix1.length() == 0) {
+				return 1; // First suffix is empty (1.2 > 1.2b)
+			}
+			if (suffix2.length() == 0) {
+				return -1; // Second suffix is empty (1.2a < 1.2)
+			}
+			int result = suffix1.compareTo(suffix2);
+			if (result != 0) {
+				return result;
+			}
+		}
+
+		// The longer version only wins if its extra parts are not all zero
+		if (numbers.length > common && !isZeroFrom(common)) {
+			return 1;
+		}
+		if (other.numbers.length > common && !other.isZeroFrom(common)) {
+			return -1;
+		}
+		return 0;
+	}
+
+	private boolean isZeroFrom(int start) {
+		for (int i = start; i < numbers.length; i++) {
+			if (numbers[i] != 0 || suffixParts[i].length() != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return version;
+	}
+}
@@ -5,23 +5,78 @@
 ********************************************************************************
 * @author Brad Wood, Luis Majano
 *
-* I implement proxy authentication
+* I implement proxy authentication.
+* Use install() to keep one instance as the JVM's default for as long as the credentials
+* don't change, instead of swapping the default out from under downloads running on
+* other threads. Each instance counts the 407 challenges it answered.
 */
 package com.ortussolutions.commandbox.authentication;
 
 import java.net.Authenticator;
 import java.net.PasswordAuthentication;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ProxyAuthenticator extends Authenticator {
 
+    private static ProxyAuthenticator installed;
+
     private String user, password;
+    private final AtomicInteger challengeCount = new AtomicInteger();
 
     public ProxyAuthenticator(String user, String password) {
         this.user = user;
         this.password = password;
     }
 
+    /**
+     * Make an authenticator with these credentials the default, reusing the one that is
+     * already installed if its credentials are the same.
+     *
+     * @param user The proxy user
+     * @param password The proxy password
+     * @return The installed authenticator
+     */
+    public static synchronized ProxyAuthenticator install(String user, String password) {
+        if (installed == null || !installed.user.equals(user) || !installed.password.equals(password)) {
+            installed = new ProxyAuthenticator(user, password);
+            Authenticator.setDefault(installed);
+        }
+        return installed;
+    }
+
+    /**
+     * Remove the installed authenticator, if any, so no proxy credentials are sent.
+     */
+    public static synchronized void uninstall() {
+        if (installed != null) {
+            installed = null;
+            Authenticator.setDefault(null);
+        }
+    }
+
+    /**
+     * @return The authenticator install() put in place, or null
+     */
+    public static synchronized ProxyAuthenticator getInstalled() {
+        return installed;
+    }
+
+    /**
+     * Only proxies get these credentials. A server asking for a login is not the proxy.
+     */
     protected PasswordAuthentication getPasswordAuthentication() {
+        if (getRequestorType() != RequestorType.PROXY) {
+            return null;
+        }
+        // The JDK only asks when it has nothing cached for this proxy, or what it sent was refused
+        challengeCount.incrementAndGet();
         return new PasswordAuthentication(user, password.toCharArray());
     }
+
+    /**
+     * @return How many 407 challenges this authenticator has answered
+     */
+    public int getChallengeCount() {
+        return challengeCount.get();
+    }
 }
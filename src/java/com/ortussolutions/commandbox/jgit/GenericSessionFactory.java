@@ -6,15 +6,83 @@
 * @author Brad Wood, Luis Majano
 *
 * I extend the abstract session factory class for jGit.
+* I keep authenticated SSH sessions open after a transport is done with them so the
+* next clone, fetch or ls-remote against the same host, port, user and identity skips
+* the handshake. Idle sessions are disconnected after the cfml.cli.ssh.idleTimeout
+* system property (milliseconds, default 60000). One instance is shared by every
+* SSHCallback in the JVM; create your own to point it at a different server or timeout.
+* Sessions authenticated through a CredentialsProvider are never pooled, since there
+* is no telling whether the next transport's provider would answer the same way.
 */
 package com.ortussolutions.commandbox.jgit;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FtpChannel;
 import org.eclipse.jgit.transport.JschConfigSessionFactory;
+import org.eclipse.jgit.transport.JschSession;
 import org.eclipse.jgit.transport.OpenSshConfig;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.RemoteSession2;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FS;
+import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 
 public class GenericSessionFactory extends JschConfigSessionFactory {
 
+	public static final String IDLE_TIMEOUT_PROPERTY = "cfml.cli.ssh.idleTimeout";
+
+	private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+	// Sessions kept per key. More than this are only needed for parallel installs from one host.
+	private static final int MAX_IDLE_PER_KEY = 4;
+
+	private static GenericSessionFactory instance;
+
+	private final long idleTimeoutMillis;
+	// host/port/user/identity to the sessions nobody is using right now, most recently used first
+	private final Map<String, Deque<IdleSession>> idle = new HashMap<String, Deque<IdleSession>>();
+	private final ThreadLocal<Session> createdSession = new ThreadLocal<Session>();
+	private Thread evictor;
+
+	public GenericSessionFactory() {
+		this( idleTimeoutFromProperty() );
+	}
+
+	/**
+	 * @param idleTimeoutMillis How long an unused session stays open. 0 disables pooling.
+	 */
+	public GenericSessionFactory( long idleTimeoutMillis ) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * @return The factory shared by all SSH transports in this JVM
+	 */
+	public static synchronized GenericSessionFactory getInstance() {
+		if( instance == null ) {
+			instance = new GenericSessionFactory();
+		}
+		return instance;
+	}
+
+	private static long idleTimeoutFromProperty() {
+		try {
+			return Long.parseLong( System.getProperty( IDLE_TIMEOUT_PROPERTY, String.valueOf( DEFAULT_IDLE_TIMEOUT_MILLIS ) ).trim() );
+		} catch( NumberFormatException e ) {
+			return DEFAULT_IDLE_TIMEOUT_MILLIS;
+		}
+	}
+
 	@Override
 	protected void configure( OpenSshConfig.Host host, Session session ) {
 		// This prevents users from having the host in "~/.ssh/known_hosts"
@@ -23,5 +91,235 @@ public class GenericSessionFactory extends JschConfigSessionFactory {
 		session.setConfig( config );
 	}
 
+	/**
+	 * Hand out an idle session for the same host, port, user, identity and password if
+	 * there is one that is still connected, otherwise connect a new one.
+	 */
+	@Override
+	public RemoteSession getSession( URIish uri, CredentialsProvider credentialsProvider, FS fs, int timeout ) throws TransportException {
+		// The key can't tell one provider's credentials from another's, so a session
+		// it authenticated must not be handed to anyone else
+		if( idleTimeoutMillis <= 0 || credentialsProvider != null ) {
+			return super.getSession( uri, credentialsProvider, fs, timeout );
+		}
+		String key = keyFor( uri, fs );
+		synchronized( idle ) {
+			Deque<IdleSession> sessions = idle.get( key );
+			while( sessions != null && !sessions.isEmpty() ) {
+				IdleSession session = sessions.pollFirst();
+				if( session.sock.isConnected() ) {
+					return new PooledSession( this, key, session.session, session.sock );
+				}
+				session.session.disconnect();
+			}
+		}
+		try {
+			JschSession session = (JschSession) super.getSession( uri, credentialsProvider, fs, timeout );
+			return new PooledSession( this, key, session, createdSession.get() );
+		} finally {
+			createdSession.remove();
+		}
+	}
+
+	/**
+	 * JschSession doesn't expose its connection, so remember the last one created on
+	 * this thread. getSession retries by creating a new one, so the last is the one in use.
+	 */
+	@Override
+	protected Session createSession( OpenSshConfig.Host host, String user, String hostName, int port, FS fs ) throws JSchException {
+		Session session = super.createSession( host, user, hostName, port, fs );
+		createdSession.set( session );
+		return session;
+	}
+
+	/**
+	 * Called by the transport when it closes. Connected sessions go back to the pool.
+	 */
+	@Override
+	public void releaseSession( RemoteSession session ) {
+		if( !( session instanceof PooledSession ) ) {
+			super.releaseSession( session );
+			return;
+		}
+		PooledSession pooled = (PooledSession) session;
+		if( !pooled.release() ) {
+			return;
+		}
+		if( !pooled.sock.isConnected() ) {
+			pooled.session.disconnect();
+			return;
+		}
+		synchronized( idle ) {
+			Deque<IdleSession> sessions = idle.get( pooled.key );
+			if( sessions == null ) {
+				sessions = new ArrayDeque<IdleSession>();
+				idle.put( pooled.key, sessions );
+			}
+			if( sessions.size() >= MAX_IDLE_PER_KEY ) {
+				pooled.session.disconnect();
+				return;
+			}
+			sessions.addFirst( new IdleSession( pooled.session, pooled.sock, System.nanoTime() ) );
+			startEvictor();
+		}
+	}
+
+	/**
+	 * Disconnect every idle session. Sessions in use are disconnected when they are released.
+	 */
+	public void closeIdleSessions() {
+		synchronized( idle ) {
+			for( Deque<IdleSession> sessions : idle.values() ) {
+				for( IdleSession session : sessions ) {
+					session.session.disconnect();
+				}
+			}
+			idle.clear();
+		}
+	}
+
+	/**
+	 * @return How many sessions are connected and waiting to be reused
+	 */
+	public int getIdleSessionCount() {
+		int count = 0;
+		synchronized( idle ) {
+			for( Deque<IdleSession> sessions : idle.values() ) {
+				count += sessions.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The identity is part of the key because the same user on the same host may be
+	 * mapped to different keys through host aliases in ~/.ssh/config.
+	 */
+	private String keyFor( URIish uri, FS fs ) {
+		String identity = "";
+		try {
+			OpenSshConfig.Host host = OpenSshConfig.get( fs ).lookup( uri.getHost() );
+			File identityFile = host.getIdentityFile();
+			if( identityFile != null ) {
+				identity = identityFile.getAbsolutePath();
+			}
+			return uri.getUser() + "@" + host.getHostName() + ":" + ( uri.getPort() > 0 ? uri.getPort() : host.getPort() )
+				+ "/" + identity + "/" + uri.getPass();
+		} catch( RuntimeException e ) {
+			return uri.getUser() + "@" + uri.getHost() + ":" + uri.getPort() + "/" + uri.getPass();
+		}
+	}
+
+	private void startEvictor() {
+		if( evictor != null ) {
+			return;
+		}
+		evictor = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				evictIdleSessions();
+			}
+		}, "CommandBox SSH session evictor" );
+		evictor.setDaemon( true );
+		evictor.start();
+	}
+
+	private void evictIdleSessions() {
+		long timeoutNanos = idleTimeoutMillis * 1000000L;
+		synchronized( idle ) {
+			while( !idle.isEmpty() ) {
+				long now = System.nanoTime();
+				long nextExpiry = timeoutNanos;
+				Iterator<Entry<String, Deque<IdleSession>>> keys = idle.entrySet().iterator();
+				while( keys.hasNext() ) {
+					Deque<IdleSession> sessions = keys.next().getValue();
+					// Oldest sessions are at the end
+					while( !sessions.isEmpty() ) {
+						IdleSession oldest = sessions.peekLast();
+						long idleFor = now - oldest.since;
+						if( idleFor < timeoutNanos && oldest.sock.isConnected() ) {
+							nextExpiry = Math.min( nextExpiry, timeoutNanos - idleFor );
+							break;
+						}
+						sessions.pollLast().session.disconnect();
+					}
+					if( sessions.isEmpty() ) {
+						keys.remove();
+					}
+				}
+				if( idle.isEmpty() ) {
+					break;
+				}
+				try {
+					idle.wait( Math.max( 1, nextExpiry / 1000000L ) );
+				} catch( InterruptedException e ) {
+					break;
+				}
+			}
+			evictor = null;
+		}
+	}
+
+	private static final class IdleSession {
+		final JschSession session;
+		final Session sock;
+		final long since;
+
+		IdleSession( JschSession session, Session sock, long since ) {
+			this.session = session;
+			this.sock = sock;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * What a transport gets from getSession. Disconnecting it returns the underlying
+	 * session to the pool instead of closing the connection.
+	 */
+	private static final class PooledSession implements RemoteSession2 {
+		private final GenericSessionFactory factory;
+		private final String key;
+		private final JschSession session;
+		private final Session sock;
+		private boolean released;
+
+		PooledSession( GenericSessionFactory factory, String key, JschSession session, Session sock ) {
+			this.factory = factory;
+			this.key = key;
+			this.session = session;
+			this.sock = sock;
+		}
+
+		/**
+		 * @return true the first time only, so a session is never pooled twice
+		 */
+		synchronized boolean release() {
+			if( released ) {
+				return false;
+			}
+			released = true;
+			return true;
+		}
+
+		@Override
+		public Process exec( String commandName, int timeout ) throws IOException {
+			return session.exec( commandName, timeout );
+		}
+
+		@Override
+		public Process exec( String commandName, Map<String, String> environment, int timeout ) throws IOException {
+			return session.exec( commandName, environment, timeout );
+		}
+
+		@Override
+		public FtpChannel getFtpChannel() {
+			return session.getFtpChannel();
+		}
+
+		@Override
+		public void disconnect() {
+			factory.releaseSession( this );
+		}
+	}
 
 }
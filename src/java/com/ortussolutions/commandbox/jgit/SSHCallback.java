@@ -5,7 +5,8 @@
 ********************************************************************************
 * @author Brad Wood, Luis Majano
 *
-* I implement the SSH callback class for jGit to support SSH
+* I implement the SSH callback class for jGit to support SSH.
+* All transports share one session factory so SSH connections to the same host are reused.
 */
 package com.ortussolutions.commandbox.jgit;
 
@@ -15,12 +16,23 @@ import com.ortussolutions.commandbox.jgit.GenericSessionFactory;
 
 public class SSHCallback implements TransportConfigCallback {
 
-	public void configure(Transport transport) {
+	private final GenericSessionFactory sessionFactory;
+
+	public SSHCallback() {
+		this( GenericSessionFactory.getInstance() );
+	}
 
-		JschConfigSessionFactory genericSessionFactory = new GenericSessionFactory();
+	/**
+	 * @param sessionFactory The factory to borrow SSH sessions from
+	 */
+	public SSHCallback( GenericSessionFactory sessionFactory ) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	public void configure(Transport transport) {
 
 		SshTransport sshTransport = ( SshTransport )transport;
-		sshTransport.setSshSessionFactory( genericSessionFactory );
+		sshTransport.setSshSessionFactory( sessionFactory );
 
 	}
 }
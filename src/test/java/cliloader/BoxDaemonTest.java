@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BoxDaemonTest {
+
+	private File home;
+	private ServerSocket serverSocket;
+	private Thread daemon;
+	private String token;
+
+	@Before
+	public void startDaemon() throws Exception {
+		home = Files.createTempDirectory("box-daemon-test").toFile();
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		token = BoxDaemon.newToken();
+		final File tokenFile = new File(home, BoxDaemon.TOKEN_FILE);
+		BoxDaemon.writeTokenFile(tokenFile, serverSocket.getLocalPort(), token);
+		// Echoes its arguments, working directory and input, and exits with the argument count
+		final BoxDaemon.CommandRunner runner = new BoxDaemon.CommandRunner() {
+			public int run(List<String> command, InputStream in, PrintStream out, PrintStream err)
+					throws IOException {
+				out.print(command + " in " + System.getProperty("cfml.cli.pwd"));
+				ByteArrayOutputStream input = new ByteArrayOutputStream();
+				Util.writeStreamTo(in, input, 1024);
+				err.print("read " + input.toString("UTF-8"));
+				return command.size();
+			}
+		};
+		daemon = new Thread(new Runnable() {
+			public void run() {
+				try {
+					BoxDaemon.serve(serverSocket, runner, tokenFile, token, 60000);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		daemon.start();
+	}
+
+	@After
+	public void stopDaemon() throws Exception {
+		new File(home, BoxDaemon.TOKEN_FILE).delete();
+		daemon.join(5000);
+		serverSocket.close();
+		JarIndexClassLoaderTest.deleteTree(home);
+	}
+
+	@Test
+	public void commandsRunInTheDaemonWithTheClientsStreams() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		Integer exitCode = BoxDaemon.runRemotely(home, Arrays.asList("echo", "hi"), "/work",
+				new ByteArrayInputStream("piped".getBytes("UTF-8")), new PrintStream(out, true),
+				new PrintStream(err, true));
+		assertEquals(Integer.valueOf(2), exitCode);
+		assertEquals("[echo, hi] in /work", out.toString("UTF-8"));
+		assertEquals("read piped", err.toString("UTF-8"));
+	}
+
+	@Test
+	public void aWrongTokenIsTurnedAwayAndTheCommandRunsLocally() throws Exception {
+		File tokenFile = new File(home, BoxDaemon.TOKEN_FILE);
+		Properties properties = BoxDaemon.readTokenFile(tokenFile);
+		properties.setProperty("token", BoxDaemon.newToken());
+		File forged = new File(home, "forged");
+		forged.mkdir();
+		BoxDaemon.writeTokenFile(new File(forged, BoxDaemon.TOKEN_FILE), serverSocket.getLocalPort(),
+				properties.getProperty("token"));
+
+		assertNull(BoxDaemon.runRemotely(forged, Arrays.asList("version"), "/work",
+				new ByteArrayInputStream(new byte[0]), System.out, System.err));
+	}
+
+	@Test
+	public void noTokenFileMeansNoDaemon() throws Exception {
+		File empty = new File(home, "empty");
+		empty.mkdir();
+		assertNull(BoxDaemon.runRemotely(empty, Arrays.asList("version"), "/work",
+				new ByteArrayInputStream(new byte[0]), System.out, System.err));
+	}
+
+	@Test
+	public void onlyTheOwnerCanReadTheTokenFile() throws Exception {
+		File tokenFile = new File(home, BoxDaemon.TOKEN_FILE);
+		if (Files.getFileStore(tokenFile.toPath()).supportsFileAttributeView("posix")) {
+			assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE),
+					Files.getPosixFilePermissions(tokenFile.toPath()));
+		}
+		assertEquals(token, BoxDaemon.readTokenFile(tokenFile).getProperty("token"));
+	}
+
+	@Test
+	public void deletingTheTokenFileStopsTheDaemon() throws Exception {
+		assertTrue(new File(home, BoxDaemon.TOKEN_FILE).delete());
+		daemon.join(5000);
+		assertTrue(!daemon.isAlive());
+	}
+}
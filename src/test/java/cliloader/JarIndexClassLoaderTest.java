@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JarIndexClassLoaderTest {
+
+	public static class Probe {
+	}
+
+	private static final String PROBE = Probe.class.getName();
+	private static final String PROBE_PATH = PROBE.replace('.', '/') + ".class";
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("jar-index-test").toFile();
+	}
+
+	@After
+	public void deleteDir() {
+		deleteTree(dir);
+	}
+
+	@Test
+	public void resourceURLsAreEncodedLikeURLClassLoader() throws Exception {
+		File jar = writeJar("lib.jar", "res/with space.txt", "res/100%.txt", "res/a#b.txt", "res/caf\u00e9.txt");
+		URLClassLoader plain = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null);
+		JarIndexClassLoader indexed = new JarIndexClassLoader(new File[] { jar }, null, null);
+		try {
+			for (String name : new String[] { "res/with space.txt", "res/100%.txt", "res/a#b.txt", "res/caf\u00e9.txt" }) {
+				URL expected = plain.findResource(name);
+				assertNotNull(name, expected);
+				// Compared as URIs: JDK 8 writes the escapes of non-ASCII bytes in upper case, later JDKs in lower
+				assertEquals(name, expected.toURI(), indexed.findResource(name).toURI());
+				assertEquals(name, 1, Collections.list(indexed.findResources(name)).size());
+				assertEquals(name, expected.toURI(), indexed.findResources(name).nextElement().toURI());
+				// And the URL really points at the entry
+				InputStream in = indexed.findResource(name).openStream();
+				in.close();
+			}
+		} finally {
+			plain.close();
+			indexed.close();
+		}
+	}
+
+	@Test
+	public void damagedIndexIsRebuilt() throws Exception {
+		File jar = writeJar("lib.jar", PROBE_PATH);
+		File indexFile = new File(dir, "index/lib.index");
+		new JarIndexClassLoader(new File[] { jar }, null, indexFile).close();
+		assertTrue(indexFile.isFile());
+
+		// Cut off like a write that never finished
+		RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+		try {
+			file.setLength(file.length() / 2);
+		} finally {
+			file.close();
+		}
+
+		JarIndexClassLoader loader = new JarIndexClassLoader(new File[] { jar }, null, indexFile);
+		try {
+			assertEquals(PROBE, loader.loadClass(PROBE).getName());
+		} finally {
+			loader.close();
+		}
+	}
+
+	@Test
+	public void indexIsNotSavedWhileAJarIsUnreadableAndIsRebuiltOnAMiss() throws Exception {
+		File jar = new File(dir, "lib.jar");
+		Files.write(jar.toPath(), "not a zip yet".getBytes("UTF-8"));
+		File indexFile = new File(dir, "lib.index");
+
+		JarIndexClassLoader loader = new JarIndexClassLoader(new File[] { jar }, null, indexFile);
+		try {
+			assertFalse(indexFile.exists());
+
+			// The jar is readable now, as if another process had finished replacing it
+			writeJar("lib.jar", PROBE_PATH);
+			assertEquals(PROBE, loader.loadClass(PROBE).getName());
+			assertTrue(indexFile.isFile());
+		} finally {
+			loader.close();
+		}
+	}
+
+	@Test
+	public void pathEncodingLeavesPlainNamesAlone() {
+		assertEquals("org/jline/reader/LineReader.class", JarIndexClassLoader.encodePath("org/jline/reader/LineReader.class"));
+		assertEquals("a%20b/c%23d%25e", JarIndexClassLoader.encodePath("a b/c#d%e"));
+	}
+
+	private File writeJar(String name, String... entries) throws IOException {
+		File jar = new File(dir, name);
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			for (String entry : entries) {
+				out.putNextEntry(new ZipEntry(entry));
+				out.write(entry.equals(PROBE_PATH) ? probeBytes() : entry.getBytes("UTF-8"));
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+		return jar;
+	}
+
+	private static byte[] probeBytes() throws IOException {
+		InputStream in = JarIndexClassLoaderTest.class.getClassLoader().getResourceAsStream(PROBE_PATH);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			Util.writeStreamTo(in, bytes, 8 * 1024);
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+}
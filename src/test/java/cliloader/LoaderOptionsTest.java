@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class LoaderOptionsTest {
+
+	private static final File JAR_DIR = new File("/opt/box/bin");
+
+	private static LoaderOptions parse(String... args) {
+		return LoaderOptions.parse(Arrays.asList(args), "CommandBox");
+	}
+
+	private static Properties props(String... keysAndValues) {
+		Properties props = new Properties();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			props.setProperty(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return props;
+	}
+
+	// Prefix matching
+
+	@Test
+	public void flagsMatchByPrefixIgnoringCaseWithOneOrTwoDashes() {
+		assertTrue(parse("-clidebug").isDebug());
+		assertTrue(parse("--CLIDebug").isDebug());
+		assertTrue(parse("-clidebugging").isDebug());
+		assertTrue(parse("--cliupdate=true").isUpdate());
+		assertFalse(parse("-cli").isDebug());
+	}
+
+	@Test
+	public void loaderFlagsAreRemovedAndEverythingElseKeptInOrder() {
+		LoaderOptions options = parse("-clidebug", "server", "-clicds", "start", "--force", "port=8080");
+		assertEquals(Arrays.asList("server", "start", "--force", "port=8080"), options.getArguments());
+	}
+
+	@Test
+	public void daemonIsALoaderFlag() {
+		LoaderOptions options = parse("--clidaemon", "version");
+		assertTrue(options.isDaemon());
+		assertEquals(Arrays.asList("version"), options.getArguments());
+		assertFalse(parse("version").isDaemon());
+	}
+
+	@Test
+	public void argumentsThatAreNotFlagsAreNeverMatched() {
+		LoaderOptions options = parse("clidebug", "echo", "cliupdate");
+		assertFalse(options.isDebug());
+		assertFalse(options.isUpdate());
+		assertEquals(Arrays.asList("clidebug", "echo", "cliupdate"), options.getArguments());
+	}
+
+	@Test
+	public void timelineAndLogTakeAnOptionalTarget() {
+		assertTrue(parse("-clitimeline").isTimeline());
+		assertNull(parse("-clitimeline").getTimelineTarget());
+		assertEquals("/tmp/t.json", parse("-clitimeline=/tmp/t.json").getTimelineTarget());
+		assertTrue(parse("-clilog").isLog());
+		assertNull(parse("-clilog").getLogTarget());
+		assertEquals("/tmp/a=b.log", parse("-clilog=/tmp/a=b.log").getLogTarget());
+	}
+
+	@Test
+	public void shellPathAndWorkingDirTakeAValueInlineOrAsTheNextArgument() {
+		assertEquals("/shell.cfm", parse("-clishellpath=/shell.cfm").getShellPath());
+		LoaderOptions separate = parse("-clishellpath", "/shell.cfm", "version");
+		assertEquals("/shell.cfm", separate.getShellPath());
+		assertEquals(Collections.singletonList("version"), separate.getArguments());
+
+		assertEquals("/work", parse("-cliworkingdir=/work").getWorkingDir());
+		assertEquals("/work", parse("--cliworkingdir", "/work").getWorkingDir());
+		// Values stop at a second "=", as they always have
+		assertEquals("/a", parse("-clishellpath=/a=b").getShellPath());
+	}
+
+	@Test
+	public void homeFlagIsNamedAfterTheCLI() {
+		assertEquals("/home/box", parse("-commandbox_home=/home/box").getHome());
+		assertEquals("/home/box", parse("--CommandBox_Home= /home/box ").getHome());
+		assertEquals("", parse("-commandbox_home").getHome());
+		assertNull(parse("-other_home=/x").getHome());
+		assertEquals(Collections.singletonList("-other_home=/x"), parse("-other_home=/x").getArguments());
+	}
+
+	// Home precedence
+
+	@Test
+	public void homeFlagWinsOverEverything() {
+		File home = parse("-commandbox_home=/from/flag").resolveHome("commandbox",
+				props("cli.home", "/from/jardir"), JAR_DIR, env("commandbox_home", "/from/env"),
+				props("commandbox_home", "/from/sysprop"), props("cli.home", "/from/builtin"));
+		assertEquals(new File("/from/flag"), home);
+	}
+
+	@Test
+	public void propertiesNextToTheBinaryComeSecond() {
+		File home = parse().resolveHome("commandbox", props("commandbox_home", "/from/jardir"), JAR_DIR,
+				env("commandbox_home", "/from/env"), props("commandbox_home", "/from/sysprop"),
+				props("cli.home", "/from/builtin"));
+		assertEquals(new File("/from/jardir"), home);
+	}
+
+	@Test
+	public void cliHomeNextToTheBinaryWinsOverTheNamedKey() {
+		File home = parse().resolveHome("commandbox", props("commandbox_home", "/named", "cli.home", "/generic"),
+				JAR_DIR, env(), props(), props());
+		assertEquals(new File("/generic"), home);
+	}
+
+	@Test
+	public void relativeHomeNextToTheBinaryIsResolvedAgainstItsFolder() {
+		File home = parse().resolveHome("commandbox", props("cli.home", "home"), JAR_DIR, env(), props(), props());
+		assertEquals(new File(JAR_DIR, "home"), home);
+	}
+
+	@Test
+	public void environmentComesBeforeSystemProperties() {
+		File home = parse().resolveHome("commandbox", props(), JAR_DIR, env("COMMANDBOX_HOME", "/from/env"),
+				props("commandbox_home", "/from/sysprop"), props("cli.home", "/from/builtin"));
+		assertEquals(new File("/from/env"), home);
+	}
+
+	@Test
+	public void systemPropertiesComeBeforeTheBuiltInProperties() {
+		File home = parse().resolveHome("commandbox", props(), JAR_DIR, env(),
+				props("commandbox_home", "/from/sysprop"), props("cli.home", "/from/builtin"));
+		assertEquals(new File("/from/sysprop"), home);
+	}
+
+	@Test
+	public void builtInNamedKeyComesBeforeBuiltInCliHome() {
+		File home = parse().resolveHome("commandbox", props(), JAR_DIR, env(), props(),
+				props("cli.home", "/generic", "commandbox_home", "/named"));
+		assertEquals(new File("/named"), home);
+	}
+
+	@Test
+	public void noHomeAnywhereLeavesTheDefaultToTheCaller() {
+		assertNull(parse().resolveHome("commandbox", props(), JAR_DIR, env(), props(), props()));
+	}
+
+	// Property merge order
+
+	@Test
+	public void laterPropertiesOverrideEarlierOnes() {
+		Properties builtIn = props("shell", "/builtin.cfm", "cfml.cli.autoupdate", "false", "only.builtin", "1");
+		Properties jarDir = props("shell", "/jardir.cfm", "only.jardir", "2");
+		Properties home = props("shell", "/home.cfm", "cfml.cli.autoupdate", "true");
+
+		Properties merged = LoaderOptions.mergeProperties(builtIn, jarDir, home);
+
+		assertEquals("/home.cfm", merged.getProperty("shell"));
+		assertEquals("true", merged.getProperty("cfml.cli.autoupdate"));
+		assertEquals("1", merged.getProperty("only.builtin"));
+		assertEquals("2", merged.getProperty("only.jardir"));
+	}
+
+	@Test
+	public void mergingLeavesTheSourcesAlone() {
+		Properties builtIn = props("shell", "/builtin.cfm");
+		Properties home = props("shell", "/home.cfm");
+
+		LoaderOptions.mergeProperties(builtIn, home);
+
+		assertEquals("/builtin.cfm", builtIn.getProperty("shell"));
+		assertEquals(1, builtIn.size());
+	}
+
+	private static Map<String, String> env(String... keysAndValues) {
+		Map<String, String> env = new HashMap<String, String>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			env.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return env;
+	}
+}
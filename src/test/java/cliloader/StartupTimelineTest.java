@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class StartupTimelineTest {
+
+	@Test
+	public void asyncPhasesAreTimedFromTheirStartAndLeaveTheOthersAlone() throws Exception {
+		StartupTimeline.enable("stderr");
+		try {
+			StartupTimeline.mark("test.modules");
+			Thread.sleep(200);
+			StartupTimeline.mark("test.ready");
+			Thread.sleep(200);
+			// Started after test.modules, finished after test.ready
+			StartupTimeline.markAsync("test.commands", "test.modules");
+			Thread.sleep(50);
+			StartupTimeline.mark("test.command");
+
+			String json = StartupTimeline.toJSON();
+			assertTrue(json, json.contains("\"name\":\"test.commands\""));
+			assertTrue(json, phase(json, "test.commands").contains("\"async\":true"));
+			assertFalse(json, phase(json, "test.command").contains("\"async\""));
+			assertTrue(json, millis(json, "test.commands") >= 400);
+			// Timed from test.ready, not from the async phase
+			assertTrue(json, millis(json, "test.command") >= 250);
+		} finally {
+			System.clearProperty(StartupTimeline.PROPERTY);
+		}
+	}
+
+	private static String phase(String json, String name) {
+		Matcher matcher = Pattern.compile("\\{\"name\":\"" + Pattern.quote(name) + "\"[^}]*\\}").matcher(json);
+		assertTrue(json, matcher.find());
+		return matcher.group();
+	}
+
+	private static long millis(String json, String name) {
+		Matcher matcher = Pattern.compile("\"durationNanos\":(\\d+)").matcher(phase(json, name));
+		assertTrue(matcher.find());
+		return Long.parseLong(matcher.group(1)) / 1000000;
+	}
+}
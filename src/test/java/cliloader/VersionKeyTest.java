@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2012 Ortus Solutions, Corp
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the APACHE LICENSE, VERSION 2.0
+ * as published by the Apache Software Foundation.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * APACHE LICENSE for more details.
+ *
+ * You should have received a copy of the APACHE LICENSE, VERSION 2.0
+ * along with this library.
+ */
+package cliloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class VersionKeyTest {
+
+	@Test
+	public void internedSuffixesStayBoundedAndStillCompare() {
+		VersionKey before = VersionKey.parse("1.0.0-rc");
+		for (int i = 0; i < VersionKey.MAX_CACHE_SIZE * 2; i++) {
+			VersionKey.parse("1.0.0-build" + i);
+			VersionKey.of("2.0.0-snapshot" + i);
+		}
+		assertTrue(String.valueOf(VersionKey.internedSuffixCount()),
+				VersionKey.internedSuffixCount() <= VersionKey.MAX_CACHE_SIZE);
+
+		// A suffix interned before the reset is equal, just no longer the same instance
+		assertEquals(0, before.compareTo(VersionKey.parse("1.0.0-rc")));
+		assertTrue(before.compareTo(VersionKey.parse("1.0.0")) < 0);
+		assertTrue(before.compareTo(VersionKey.parse("1.0.0-beta")) > 0);
+	}
+}
@@ -0,0 +1,158 @@
+/**
+*********************************************************************************
+* Copyright Since 2014 CommandBox by Ortus Solutions, Corp
+* www.coldbox.org | www.ortussolutions.com
+********************************************************************************
+* @author Brad Wood, Luis Majano
+*
+* I run the SSH session pool against an embedded Apache MINA SSH server.
+*/
+package com.ortussolutions.commandbox.jgit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.eclipse.jgit.util.FS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GenericSessionFactoryTest {
+
+	private static final String USER = "git";
+	private static final String PASSWORD = "secret";
+
+	private File home;
+	private FS fs;
+	private SshServer server;
+	private final AtomicInteger sessionsOpened = new AtomicInteger();
+	private GenericSessionFactory factory;
+
+	@Before
+	public void startServer() throws Exception {
+		home = Files.createTempDirectory( "ssh-pool-test" ).toFile();
+		// Keep JSch's known_hosts and ~/.ssh/config lookups away from the real home
+		fs = FS.DETECTED.newInstance().setUserHome( home );
+
+		server = SshServer.setUpDefaultServer();
+		server.setHost( "localhost" );
+		server.setPort( 0 );
+		server.setKeyPairProvider( new SimpleGeneratorHostKeyProvider( new File( home, "hostkey.ser" ).toPath() ) );
+		server.setPasswordAuthenticator( ( username, password, session ) -> USER.equals( username ) && PASSWORD.equals( password ) );
+		server.addSessionListener( new SessionListener() {
+			@Override
+			public void sessionCreated( Session session ) {
+				sessionsOpened.incrementAndGet();
+			}
+		} );
+		server.start();
+
+		factory = new GenericSessionFactory( 60000 );
+	}
+
+	@After
+	public void stopServer() throws Exception {
+		factory.closeIdleSessions();
+		server.stop( true );
+		deleteTree( home );
+	}
+
+	private URIish uri( String password ) throws Exception {
+		return new URIish( "ssh://" + USER + ( password == null ? "" : ":" + password ) + "@localhost:" + server.getPort() + "/repo.git" );
+	}
+
+	@Test
+	public void releasedSessionIsReusedForTheSameCredentials() throws Exception {
+		RemoteSession first = factory.getSession( uri( PASSWORD ), null, fs, 10000 );
+		first.disconnect();
+		assertEquals( 1, factory.getIdleSessionCount() );
+
+		RemoteSession second = factory.getSession( uri( PASSWORD ), null, fs, 10000 );
+		assertEquals( 0, factory.getIdleSessionCount() );
+		second.disconnect();
+
+		assertEquals( "only one connection to the server", 1, sessionsOpened.get() );
+	}
+
+	@Test
+	public void releasingTwiceOnlyPoolsOnce() throws Exception {
+		RemoteSession session = factory.getSession( uri( PASSWORD ), null, fs, 10000 );
+		session.disconnect();
+		session.disconnect();
+		assertEquals( 1, factory.getIdleSessionCount() );
+	}
+
+	@Test
+	public void differentPasswordDoesNotGetThePooledSession() throws Exception {
+		factory.getSession( uri( PASSWORD ), null, fs, 10000 ).disconnect();
+		assertEquals( 1, factory.getIdleSessionCount() );
+
+		try {
+			factory.getSession( uri( "wrong" ), null, fs, 10000 );
+			fail( "a session authenticated with another password was handed out" );
+		} catch( TransportException e ) {
+			// Expected, the server refused the wrong password
+		}
+		assertEquals( "the pooled session is still waiting for its own key", 1, factory.getIdleSessionCount() );
+	}
+
+	@Test
+	public void sessionsFromACredentialsProviderAreNeverPooled() throws Exception {
+		RemoteSession session = factory.getSession( uri( null ), new UsernamePasswordCredentialsProvider( USER, PASSWORD ), fs, 10000 );
+		session.disconnect();
+		assertEquals( 0, factory.getIdleSessionCount() );
+
+		try {
+			factory.getSession( uri( null ), new UsernamePasswordCredentialsProvider( USER, "wrong" ), fs, 10000 );
+			fail( "a session authenticated by another credentials provider was handed out" );
+		} catch( TransportException e ) {
+			// Expected, the server refused the wrong password. JSch retries a few times
+			// with a provider, so the server's connection count isn't meaningful here.
+		}
+		assertEquals( 0, factory.getIdleSessionCount() );
+	}
+
+	@Test
+	public void idleSessionsAreClosedAfterTheTimeout() throws Exception {
+		factory = new GenericSessionFactory( 200 );
+		factory.getSession( uri( PASSWORD ), null, fs, 10000 ).disconnect();
+		assertEquals( 1, factory.getIdleSessionCount() );
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while( factory.getIdleSessionCount() > 0 && System.currentTimeMillis() < deadline ) {
+			Thread.sleep( 50 );
+		}
+		assertEquals( 0, factory.getIdleSessionCount() );
+	}
+
+	@Test
+	public void zeroTimeoutDisablesPooling() throws Exception {
+		factory = new GenericSessionFactory( 0 );
+		factory.getSession( uri( PASSWORD ), null, fs, 10000 ).disconnect();
+		factory.getSession( uri( PASSWORD ), null, fs, 10000 ).disconnect();
+		assertEquals( 0, factory.getIdleSessionCount() );
+		assertEquals( 2, sessionsOpened.get() );
+	}
+
+	private static void deleteTree( File file ) {
+		File[] children = file.listFiles();
+		if( children != null ) {
+			for( File child : children ) {
+				deleteTree( child );
+			}
+		}
+		file.delete();
+	}
+}